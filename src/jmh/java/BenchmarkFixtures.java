@@ -0,0 +1,145 @@
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 9, 2022
+ *
+ * This class is the bridge between the JMH benchmarks and the blockchain.
+ * JMH refuses benchmarks in the default package and code in a package cannot name classes of the default package,
+ * so the benchmarks live in the benchmarks package and reach the chain through these static methods,
+ * looked up once by name into static final method handles (see benchmarks.Fixtures).
+ * Blocks and chains are handed out as Object for that reason.
+ *
+ * Being in the default package, this class also sets up states the public methods cannot reach,
+ * such as a chain whose hashes have to be computed again.
+ */
+
+public class BenchmarkFixtures {
+
+    //The blocks of a benchmark chain are stamped one millisecond apart from here, so every run hashes the same bytes
+    static final long START_MILLIS = 1_670_000_000_000L;
+
+    /**
+     * @param input
+     * @return Block.SHA2Str(input)
+     * @throws NoSuchAlgorithmException
+     */
+    public static String sha2Str(String input) throws NoSuchAlgorithmException {
+        return Block.SHA2Str(input);
+    }
+
+    /**
+     * A block on top of a genesis block, not part of any chain
+     * @param difficulty
+     * @return the Block
+     */
+    public static Object block(int difficulty){
+        Block genesis = new Block(0, new Timestamp(START_MILLIS), "Genesis", 1);
+        Block block = new Block(1, new Timestamp(START_MILLIS + 1), "benchmark transaction", difficulty);
+        block.setPreviousHash(genesis.calculateHash());
+        block.setNonce(BigInteger.valueOf(123_456_789));
+        return block;
+    }
+
+    /**
+     * calculateHash() of block with its memo dropped, so the header is hashed every time
+     * @param block
+     * @return the Hash256
+     */
+    public static Object calculateHash(Object block){
+        Block b = (Block) block;
+        b.hash = null;
+        return b.calculateHash();
+    }
+
+    /**
+     * Mine block for a transaction it was not mined for before, so every call searches a fresh nonce
+     * @param block
+     * @param threads
+     * @param round different in every call
+     * @return the Hash256 found
+     */
+    public static Object proofOfWork(Object block, int threads, long round){
+        Block b = (Block) block;
+        b.setData("benchmark transaction " + round);
+        return b.proofOfWork(threads);
+    }
+
+    /**
+     * A valid chain kept in memory, mining one thread per block like a server on a single core
+     * @param size number of blocks, the genesis block included
+     * @param difficulty of every block
+     * @param columns true to keep the blocks in a ColumnChainStore, false in a ListChainStore
+     * @return the BlockChain, fully verified
+     */
+    public static Object chain(int size, int difficulty, boolean columns){
+        BlockChain bc = new BlockChain(columns ? new ColumnChainStore() : new ListChainStore());
+        bc.setMiningThreads(1);
+        Hash256 parent = Hash256.EMPTY;
+        for(int i = 0; i < size; i++){
+            Block block = new Block(i, new Timestamp(START_MILLIS + i), i == 0 ? "Genesis" : "transaction " + i, difficulty);
+            block.previousHash = parent;
+            //Mined on this thread, starting a miner thread per block would dominate building a million blocks
+            parent = block.proofOfWork();
+            bc.chain.add(block);
+            bc.totalDifficulty += difficulty;
+            bc.totalExpectedHashes = bc.totalExpectedHashes.add(BlockChain.expectedHashes(difficulty));
+        }
+        bc.latestHash = parent;
+        bc.verifiedUpTo = size - 1;
+        return bc;
+    }
+
+    /**
+     * Make the next verification of chain start from scratch: no block is known to be valid
+     * and every memoized hash is dropped
+     * @param chain
+     */
+    public static void forgetVerification(Object chain){
+        BlockChain bc = (BlockChain) chain;
+        for(int i = 0; i < bc.chain.size(); i++){
+            Block block = bc.chain.get(i);
+            block.hash = null;
+            bc.chain.set(i, block);
+        }
+        bc.verifiedUpTo = -1;
+    }
+
+    /**
+     * @param chain
+     * @return isChainValid() of chain
+     */
+    public static String isChainValid(Object chain){
+        return ((BlockChain) chain).isChainValid();
+    }
+
+    /**
+     * @param chain
+     * @param index
+     * @param data
+     */
+    public static void corruptBlock(Object chain, int index, String data){
+        ((BlockChain) chain).corruptBlock(index, data);
+    }
+
+    /**
+     * @param chain
+     * @return number of blocks repairChain() mined again
+     */
+    public static int repairChain(Object chain){
+        BlockChain bc = (BlockChain) chain;
+        bc.repairChain();
+        return bc.getLastRepairBlocks();
+    }
+
+    /**
+     * @param chain
+     * @return toString() of chain
+     */
+    public static String chainToString(Object chain){
+        return chain.toString();
+    }
+
+}
@@ -0,0 +1,44 @@
+package benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 9, 2022
+ *
+ * This class is the entry point of target/benchmarks.jar.
+ * It takes the usual JMH command line and adds what every run of ours needs unless the command line says otherwise:
+ * the gc profiler, for the bytes allocated per operation, and the results as JSON in target/jmh-result.json,
+ * so runs can be compared across releases.
+ */
+
+public class BenchmarkRunner {
+
+    static final String DEFAULT_RESULT = "target/jmh-result.json";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if(commandLine.shouldHelp() || commandLine.shouldList()){
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if(commandLine.getProfilers().isEmpty()){
+            options.addProfiler(GCProfiler.class);
+        }
+        if(!commandLine.getResultFormat().hasValue()){
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if(!commandLine.getResult().hasValue()){
+            options.result(DEFAULT_RESULT);
+        }
+        new Runner(options.build()).run();
+    }
+
+}
@@ -0,0 +1,103 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 9, 2022
+ *
+ * This class measures the operations on a whole chain at sizes from a thousand to a million blocks:
+ * - isChainValid() from scratch, every hash computed again, and once everything is verified
+ * - repairChain() after corrupting the block REPAIR_DEPTH blocks from the end, the genesis block of smaller chains
+ * - toString() of the whole chain
+ * Each runs on a chain of Block objects and on a ColumnChainStore, GCProfiler shows what the views allocate.
+ * The chain is mined once per size at difficulty 1, so building it takes little time next to measuring it.
+ * The setup per invocation only runs for the operations that need the chain in a given state, and is not measured.
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class ChainBenchmark {
+
+    static final int CHAIN_DIFFICULTY = 1;
+    static final int REPAIR_DEPTH = 1000;
+
+    static final MethodHandle CHAIN = Fixtures.find("chain", Object.class, int.class, int.class, boolean.class);
+    static final MethodHandle FORGET_VERIFICATION = Fixtures.find("forgetVerification", void.class, Object.class);
+    static final MethodHandle IS_CHAIN_VALID = Fixtures.find("isChainValid", String.class, Object.class);
+    static final MethodHandle CORRUPT_BLOCK = Fixtures.find("corruptBlock", void.class, Object.class, int.class, String.class);
+    static final MethodHandle REPAIR_CHAIN = Fixtures.find("repairChain", int.class, Object.class);
+    static final MethodHandle CHAIN_TO_STRING = Fixtures.find("chainToString", String.class, Object.class);
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    int size;
+
+    @Param({"objects", "columns"})
+    String store;
+
+    Object chain;
+    long round;
+
+    @Setup(Level.Trial)
+    public void buildChain() throws Throwable {
+        this.chain = (Object) CHAIN.invokeExact(this.size, CHAIN_DIFFICULTY, this.store.equals("columns"));
+    }
+
+    //Every hash of the chain has to be computed again by the invocation
+    @State(Scope.Thread)
+    public static class Unverified {
+        @Setup(Level.Invocation)
+        public void forget(ChainBenchmark state) throws Throwable {
+            FORGET_VERIFICATION.invokeExact(state.chain);
+        }
+    }
+
+    //A block near the end of the chain does not show proof of work at the start of the invocation
+    @State(Scope.Thread)
+    public static class Corrupted {
+        @Setup(Level.Invocation)
+        public void corrupt(ChainBenchmark state) throws Throwable {
+            int index = Math.max(0, state.size - REPAIR_DEPTH);
+            CORRUPT_BLOCK.invokeExact(state.chain, index, "corrupted " + state.round++);
+        }
+    }
+
+    @Benchmark
+    public String isChainValid(Unverified unverified) throws Throwable {
+        return (String) IS_CHAIN_VALID.invokeExact(this.chain);
+    }
+
+    @Benchmark
+    public String isChainValidVerified() throws Throwable {
+        return (String) IS_CHAIN_VALID.invokeExact(this.chain);
+    }
+
+    @Benchmark
+    public int repairChain(Corrupted corrupted) throws Throwable {
+        return (int) REPAIR_CHAIN.invokeExact(this.chain);
+    }
+
+    @Benchmark
+    public String chainToString() throws Throwable {
+        return (String) CHAIN_TO_STRING.invokeExact(this.chain);
+    }
+
+}
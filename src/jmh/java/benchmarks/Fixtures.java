@@ -0,0 +1,36 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 9, 2022
+ *
+ * This class looks up the static methods of BenchmarkFixtures, which is in the default package and cannot be imported.
+ * Held in static final fields, the handles are constants to the JIT, which inlines invokeExact() like a direct call.
+ * invokeExact() needs the exact types of the lookup at the call site, including the cast of the result.
+ */
+
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * @param name of a public static method of BenchmarkFixtures
+     * @param returnType
+     * @param parameterTypes
+     * @return a handle on the method
+     */
+    static MethodHandle find(String name, Class<?> returnType, Class<?>... parameterTypes){
+        try {
+            return MethodHandles.publicLookup().findStatic(Class.forName("BenchmarkFixtures"), name,
+                    MethodType.methodType(returnType, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
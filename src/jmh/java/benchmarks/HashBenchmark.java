@@ -0,0 +1,58 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 9, 2022
+ *
+ * This class measures hashing a single block header:
+ * Block.SHA2Str() of the String calculateHash() stands for, and calculateHash() itself with its memo dropped.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+    static final MethodHandle SHA2_STR = Fixtures.find("sha2Str", String.class, String.class);
+    static final MethodHandle BLOCK = Fixtures.find("block", Object.class, int.class);
+    static final MethodHandle CALCULATE_HASH = Fixtures.find("calculateHash", Object.class, Object.class);
+
+    //index + timestamp + data + previousHash + nonce + difficulty of a typical block
+    String header;
+    Object block;
+
+    @Setup
+    public void setUp() throws Throwable {
+        this.header = "1" + "2022-12-02 11:53:20.001" + "benchmark transaction" +
+                "00E4A4A4E2D9B7F5C3C1A33D3B1D3A0F" + "123456789" + "2";
+        this.block = (Object) BLOCK.invokeExact(2);
+    }
+
+    @Benchmark
+    public String sha2Str() throws Throwable {
+        return (String) SHA2_STR.invokeExact(this.header);
+    }
+
+    @Benchmark
+    public Object calculateHash() throws Throwable {
+        return (Object) CALCULATE_HASH.invokeExact(this.block);
+    }
+
+}
@@ -0,0 +1,57 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 9, 2022
+ *
+ * This class measures Block.proofOfWork(threads) at several difficulties.
+ * Every call mines the block for a new transaction, so the time is averaged over many nonce searches
+ * and not over one lucky or unlucky nonce. Each difficulty step takes 16 times the hashes of the one before.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MiningBenchmark {
+
+    static final MethodHandle BLOCK = Fixtures.find("block", Object.class, int.class);
+    static final MethodHandle PROOF_OF_WORK = Fixtures.find("proofOfWork", Object.class, Object.class, int.class, long.class);
+
+    @Param({"1", "2", "3", "4"})
+    int difficulty;
+
+    @Param({"1", "4"})
+    int threads;
+
+    Object block;
+    long round;
+
+    @Setup
+    public void setUp() throws Throwable {
+        this.block = (Object) BLOCK.invokeExact(this.difficulty);
+    }
+
+    @Benchmark
+    public Object proofOfWork() throws Throwable {
+        return (Object) PROOF_OF_WORK.invokeExact(this.block, this.threads, this.round++);
+    }
+
+}
@@ -0,0 +1,432 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Nov 28, 2022
+ *
+ * This class is the binary protocol of serverTCP, for clients polling the server at a high rate.
+ * A client asks for it by sending HELLO as its very first bytes, the server answers with HELLO and both sides
+ * then exchange frames. A client starting with anything else (a Json request starts with '{') gets the Json lines protocol.
+ *
+ * A frame is [int length][payload], numbers are big-endian and fixed-width, hashes are their 32 raw bytes
+ * (all zero for no hash) and strings are [int length][UTF-8 bytes] with -1 for null.
+ *
+ * A request payload holds every field of a RequestMessage:
+ * [byte selection][long id][int difficulty][int blockIndex][int toIndex][int count][int position][long ticket][long timeout]
+ * [long hashBudget][string data]
+ *
+ * A response payload starts with its kind:
+ * STATUS  [byte selection][long id][int size][hash chainHash][short length][totalHashes][int totalDiff][long recentNonce][int diff][int hps][string response]
+ * TICKET  [byte selection][long id][long ticket][byte status][int index][int position][long nonce][hash hash]
+ * JSON    a piece of a Json answer, the other answers (chain views, pages, proofs) go as JSON frames
+ *         of at most JSON_FRAME_BYTES each, JSON_END carries the last piece.
+ *
+ * Frames are read into one reused buffer per connection and decoded in place.
+ */
+
+public class BinaryProtocol {
+
+    static final byte[] HELLO = {(byte) 0xB1, 'B', 'C', 1};
+    static final byte STATUS = 1;
+    static final byte TICKET = 2;
+    static final byte JSON = 3;
+    static final byte JSON_END = 4;
+
+    //Largest frame accepted, requests are small and Json answers come in pieces
+    static final int MAX_FRAME_BYTES = 1024 * 1024;
+    static final int JSON_FRAME_BYTES = 64 * 1024;
+
+    //Ticket states in the order of their status byte
+    private static final String[] TICKET_STATUS = {MiningTicket.QUEUED, MiningTicket.MINING, MiningTicket.DONE, MiningTicket.FAILED};
+
+    private final InputStream in;
+    private final OutputStream out;
+    //Frame being read, grows to the largest frame seen
+    private ByteBuffer readFrame = ByteBuffer.allocate(256);
+    //Frame being written, grows the same way
+    private ByteBuffer writeFrame = ByteBuffer.allocate(256);
+    private final byte[] head = new byte[4];
+
+    /**
+     * A connection speaking the binary protocol, after HELLO
+     * @param in
+     * @param out
+     */
+    public BinaryProtocol(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Client side of the negotiation: send HELLO and wait for the server to answer with it
+     * @param in
+     * @param out
+     * @return the connection
+     * @throws IOException if the server does not speak the binary protocol
+     */
+    public static BinaryProtocol connect(InputStream in, OutputStream out) throws IOException {
+        out.write(HELLO);
+        out.flush();
+        byte[] answer = new byte[HELLO.length];
+        new DataInputStream(in).readFully(answer);
+        if(!Arrays.equals(answer, HELLO)){
+            throw new IOException("Server does not speak the binary protocol");
+        }
+        return new BinaryProtocol(in, out);
+    }
+
+    /**
+     * Read the next frame into the read buffer
+     * @return false at the end of the stream
+     * @throws IOException
+     */
+    private boolean readFrame() throws IOException {
+        byte[] head = this.head;
+        int n = this.in.readNBytes(head, 0, 4);
+        if(n == 0){
+            return false;
+        }
+        if(n < 4){
+            throw new EOFException("Connection closed inside a frame");
+        }
+        int length = ByteBuffer.wrap(head).getInt();
+        if(length < 0 || length > MAX_FRAME_BYTES){
+            throw new IOException("Frame of " + length + " bytes");
+        }
+        if(this.readFrame.capacity() < length){
+            this.readFrame = ByteBuffer.allocate(Math.max(length, this.readFrame.capacity() * 2));
+        }
+        this.readFrame.clear().limit(length);
+        if(this.in.readNBytes(this.readFrame.array(), 0, length) < length){
+            throw new EOFException("Connection closed inside a frame");
+        }
+        return true;
+    }
+
+    /**
+     * Send the frame built in the write buffer
+     * @throws IOException
+     */
+    private void sendFrame() throws IOException {
+        ByteBuffer frame = this.writeFrame;
+        frame.putInt(0, frame.position() - 4);
+        this.out.write(frame.array(), 0, frame.position());
+        this.out.flush();
+    }
+
+    private ByteBuffer startFrame(){
+        this.writeFrame.clear();
+        this.writeFrame.putInt(0);
+        return this.writeFrame;
+    }
+
+    //Frames are built in place, a frame that does not fit is built again in a buffer twice as large
+    private interface FrameBody {
+        void writeTo(ByteBuffer frame);
+    }
+
+    private void send(FrameBody body) throws IOException {
+        while(true){
+            try {
+                body.writeTo(startFrame());
+                break;
+            } catch (BufferOverflowException e) {
+                this.writeFrame = ByteBuffer.allocate(this.writeFrame.capacity() * 2);
+            }
+        }
+        sendFrame();
+    }
+
+    /**
+     * Server side: read the next request
+     * @return the request, null once the client has closed the connection
+     * @throws IOException
+     */
+    public RequestMessage readRequest() throws IOException {
+        if(!readFrame()){
+            return null;
+        }
+        ByteBuffer frame = this.readFrame;
+        int selection = frame.get();
+        long id = frame.getLong();
+        int difficulty = frame.getInt();
+        int blockIndex = frame.getInt();
+        RequestMessage msg = new RequestMessage(selection, blockIndex, frame.getInt(), frame.getInt());
+        msg.id = id;
+        msg.difficulty = difficulty;
+        msg.position = frame.getInt();
+        msg.ticket = frame.getLong();
+        msg.timeout = frame.getLong();
+        msg.hashBudget = frame.getLong();
+        msg.data = getString(frame);
+        return msg;
+    }
+
+    /**
+     * Client side: send a request
+     * @param msg
+     * @throws IOException
+     */
+    public void writeRequest(RequestMessage msg) throws IOException {
+        send(frame -> {
+            frame.put((byte) msg.selection);
+            frame.putLong(msg.id);
+            frame.putInt(msg.difficulty);
+            frame.putInt(msg.blockIndex);
+            frame.putInt(msg.toIndex);
+            frame.putInt(msg.count);
+            frame.putInt(msg.position);
+            frame.putLong(msg.ticket);
+            frame.putLong(msg.timeout);
+            frame.putLong(msg.hashBudget);
+            putString(frame, msg.data);
+        });
+    }
+
+    /**
+     * Client side: read the next response.
+     * Status and ticket answers fill the matching fields, a Json answer is parsed
+     * and its text is kept in ResponseMessage.json (the chain view of command 3 only has that).
+     * @return
+     * @throws IOException
+     */
+    public ResponseMessage readResponse() throws IOException {
+        StringBuilder json = null;
+        while(true){
+            if(!readFrame()){
+                throw new EOFException("Connection closed before the response");
+            }
+            ByteBuffer frame = this.readFrame;
+            byte kind = frame.get();
+            if(kind == STATUS){
+                int selection = frame.get();
+                long id = frame.getLong();
+                int size = frame.getInt();
+                String chainHash = getHash(frame).toString();
+                byte[] totalHashes = new byte[frame.getShort()];
+                frame.get(totalHashes);
+                int totalDiff = frame.getInt();
+                long recentNonce = frame.getLong();
+                int diff = frame.getInt();
+                int hps = frame.getInt();
+                ResponseMessage response = new ResponseMessage(selection, size, chainHash, new BigInteger(totalHashes),
+                        totalDiff, recentNonce, diff, hps, getString(frame));
+                response.id = id;
+                return response;
+            } else if(kind == TICKET){
+                ResponseMessage response = new ResponseMessage(frame.get(), 0, null, null, 0, 0, 0, 0, null);
+                response.id = frame.getLong();
+                response.ticket = frame.getLong();
+                response.status = TICKET_STATUS[frame.get()];
+                response.index = frame.getInt();
+                response.position = frame.getInt();
+                response.nonce = frame.getLong();
+                Hash256 hash = getHash(frame);
+                response.hash = MiningTicket.DONE.equals(response.status) ? hash.toString() : null;
+                return response;
+            } else if(kind == JSON || kind == JSON_END){
+                if(json == null){
+                    json = new StringBuilder();
+                }
+                json.append(new String(frame.array(), frame.position(), frame.remaining(), StandardCharsets.UTF_8));
+                if(kind == JSON_END){
+                    String text = json.toString();
+                    ResponseMessage response = text.startsWith("{\"selection\"")
+                            ? ChainClient.GSON.fromJson(text, ResponseMessage.class)
+                            : new ResponseMessage(0, 0, null, null, 0, 0, 0, 0, null);
+                    response.json = text;
+                    return response;
+                }
+            } else {
+                throw new IOException("Unknown frame kind " + kind);
+            }
+        }
+    }
+
+    /**
+     * The server side of a binary connection, answering requests as frames
+     */
+    class Responses implements ResponseWriter {
+
+        @Override
+        public void status(RequestMessage msg, BlockChain bc, String reply) throws IOException {
+            int size;
+            Hash256 chainHash;
+            byte[] totalHashes;
+            int totalDiff;
+            long recentNonce;
+            int diff;
+            //Hold the read lock so that all fields describe the same state of the chain, but not while sending
+            bc.lock.readLock().lock();
+            try {
+                Block latest = bc.getLatestBlock();
+                size = bc.getChainSize();
+                chainHash = bc.latestHash;
+                totalHashes = bc.getTotalExpectedHashes().toByteArray();
+                totalDiff = bc.getTotalDifficulty();
+                recentNonce = latest.getNonce().longValue();
+                diff = latest.getDifficulty();
+            } finally {
+                bc.lock.readLock().unlock();
+            }
+            send(frame -> {
+                frame.put(STATUS);
+                frame.put((byte) msg.selection);
+                frame.putLong(msg.id);
+                frame.putInt(size);
+                putHash(frame, chainHash);
+                frame.putShort((short) totalHashes.length);
+                frame.put(totalHashes);
+                frame.putInt(totalDiff);
+                frame.putLong(recentNonce);
+                frame.putInt(diff);
+                frame.putInt(bc.getHashPerSecond());
+                putString(frame, reply);
+            });
+        }
+
+        @Override
+        public void ticket(RequestMessage msg, MiningTicket ticket) throws IOException {
+            String status = ticket.getStatus();
+            boolean done = MiningTicket.DONE.equals(status);
+            send(frame -> {
+                frame.put(TICKET);
+                frame.put((byte) msg.selection);
+                frame.putLong(msg.id);
+                frame.putLong(ticket.getId());
+                frame.put((byte) Arrays.asList(TICKET_STATUS).indexOf(status));
+                frame.putInt(done ? ticket.getIndex() : 0);
+                frame.putInt(done ? ticket.getPosition() : 0);
+                frame.putLong(done ? ticket.getNonce().longValue() : 0);
+                putHash(frame, done ? ticket.getHash() : Hash256.EMPTY);
+            });
+        }
+
+        @Override
+        public void json(JsonBody body) throws IOException {
+            Writer writer = new OutputStreamWriter(new JsonFrames(), StandardCharsets.UTF_8);
+            //The same text as on a Json lines connection
+            body.writeTo(new serverTCP.SingleLineWriter(writer));
+            writer.close();
+        }
+    }
+
+    /**
+     * Cuts a Json answer into JSON frames, the last one goes as JSON_END when the stream is closed
+     */
+    private class JsonFrames extends OutputStream {
+        final ByteBuffer frame = ByteBuffer.allocate(4 + 1 + JSON_FRAME_BYTES);
+
+        JsonFrames() {
+            start();
+        }
+
+        private void start(){
+            this.frame.clear();
+            this.frame.putInt(0);
+            this.frame.put(JSON);
+        }
+
+        private void send(byte kind) throws IOException {
+            this.frame.put(4, kind);
+            this.frame.putInt(0, this.frame.position() - 4);
+            out.write(this.frame.array(), 0, this.frame.position());
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(!this.frame.hasRemaining()){
+                send(JSON);
+                start();
+            }
+            this.frame.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while(length > 0){
+                if(!this.frame.hasRemaining()){
+                    send(JSON);
+                    start();
+                }
+                int n = Math.min(length, this.frame.remaining());
+                this.frame.put(bytes, offset, n);
+                offset += n;
+                length -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            send(JSON_END);
+            out.flush();
+        }
+    }
+
+    /**
+     * Server side: answer requests until the client closes the connection, see serverTCP.serveConnection()
+     * @param bc
+     * @param readers runs the thread reading the requests ahead
+     * @throws IOException
+     */
+    public void serve(BlockChain bc, Executor readers) throws IOException {
+        serverTCP.serveConnection(this::readRequest, new Responses(), bc, readers);
+    }
+
+    private static void putHash(ByteBuffer frame, Hash256 hash){
+        if(hash == Hash256.EMPTY){
+            frame.put(new byte[32]);
+        } else {
+            int at = frame.position();
+            if(frame.remaining() < 32){
+                throw new BufferOverflowException();
+            }
+            hash.writeBytes(frame.array(), at);
+            frame.position(at + 32);
+        }
+    }
+
+    private static Hash256 getHash(ByteBuffer frame){
+        int at = frame.position();
+        frame.position(at + 32);
+        for(int i = at; i < at + 32; i++){
+            if(frame.get(i) != 0){
+                return Hash256.fromBytes(frame.array(), at);
+            }
+        }
+        return Hash256.EMPTY;
+    }
+
+    private static void putString(ByteBuffer frame, String value){
+        if(value == null){
+            frame.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        frame.putInt(bytes.length);
+        frame.put(bytes);
+    }
+
+    private static String getString(ByteBuffer frame){
+        int length = frame.getInt();
+        if(length < 0){
+            return null;
+        }
+        String value = new String(frame.array(), frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return value;
+    }
+
+}
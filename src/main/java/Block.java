@@ -1,7 +1,13 @@
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Author: Changzhou Zheng
@@ -10,6 +16,10 @@ import java.sql.Timestamp;
  * The Block class is a constructor for each block that will be store in a blockchain.
  * 4 parameters were asked when create a new Block object.
  * nonce and previousHash will be calculated by hashing.
+ *
+ * A block either holds a single transaction in data, or a batch of transactions mined together.
+ * For a batch, data is the Json array of the transactions, and the header hash covers the Merkle root
+ * of the transactions in place of data, so its cost does not grow with the batch (see MerkleTree).
  */
 
 public class Block {
@@ -19,10 +29,24 @@ public class Block {
     int index;
     Timestamp timestamp;
     String data;
+    //The transactions of a batch block, null for a block holding the single transaction in data
+    List<String> transactions;
+    //Merkle root of the transactions of a batch block, null for a single transaction
+    String merkleRoot;
+    //Put in front of the Merkle root in the header of a batch block. No String encodes to this byte in UTF-8,
+    //so the header of a single transaction block, whatever its data, can never pass for the header of a batch
+    static final byte BATCH_TAG = (byte) 0xFF;
     int difficulty;
-    String previousHash;
+    Hash256 previousHash;
     BigInteger nonce;
 
+    //Memoized result of calculateHash(), dropped by every setter
+    Hash256 hash;
+    //The chain this block was added to, told about every change so it knows what to verify again
+    BlockChain owner;
+    //Number of hashes the last proofOfWork() computed, over all threads
+    long hashesTried;
+
     /**
      * Constructor for each Block object
      * @param ind
@@ -37,6 +61,53 @@ public class Block {
         this.difficulty = diff;
     }
 
+    /**
+     * Constructor for a block holding a batch of transactions
+     * @param ind
+     * @param ts
+     * @param txs
+     * @param diff
+     */
+    Block(int ind, Timestamp ts, List<String> txs, int diff){
+        this(ind, ts, encodeTransactions(txs), diff);
+        this.transactions = List.copyOf(txs);
+        this.merkleRoot = new MerkleTree(this.transactions).getRoot();
+    }
+
+    /**
+     * The bytes of the header standing for the transactions: the data of a single transaction block,
+     * as the header always held it, or the Merkle root of a batch block, which the header puts after BATCH_TAG
+     * @param data
+     * @param merkleRoot not null for a batch block
+     * @return
+     */
+    static byte[] headerData(String data, String merkleRoot){
+        return String.valueOf(merkleRoot != null ? merkleRoot : data).getBytes();
+    }
+
+    /**
+     * The data of a batch block: its transactions as a Json array
+     * @param txs
+     * @return
+     */
+    static String encodeTransactions(List<String> txs){
+        StringWriter out = new StringWriter();
+        try {
+            out.write("[");
+            for(int i = 0; i < txs.size(); i++){
+                if(i != 0){
+                    out.write(",");
+                }
+                writeJsonString(out, txs.get(i));
+            }
+            out.write("]");
+        } catch (IOException e) {
+            //A StringWriter never throws
+            throw new RuntimeException(e);
+        }
+        return out.toString();
+    }
+
     /**
      * Convert string variables by SHA-256
      * @param input
@@ -76,24 +147,48 @@ public class Block {
 
     /**
      * This method computes a hash of the concatenation of the index, timestamp, data, previousHash, nonce, and difficulty.
-     * Append all 6 parameters together and convert to a hashed String output
+     * For a batch block the Merkle root of its transactions, after BATCH_TAG, stands in for data, see headerData().
+     * The fields are fed to SHA-256 as the bytes of the appended String,
+     * so for a single transaction block the result is the same as SHA2Str() of the appended String.
+     * The hash is memoized until one of the setters changes the block.
      * @return
      */
-    public String calculateHash(){
-        String s = "";
-        s += String.valueOf(this.index);
-        s += this.timestamp.toString();
-        s += this.data;
-        s += this.previousHash;
-        s += this.nonce;
-        s += this.difficulty;
+    public Hash256 calculateHash(){
+        Hash256 cached = this.hash;
+        if(cached != null){
+            return cached;
+        }
+        byte[] nonceBytes = String.valueOf(this.nonce).getBytes();
+        HeaderHasher.Scratch scratch = HeaderHasher.scratch();
+        new HeaderHasher(this).hash(nonceBytes, 0, nonceBytes.length, scratch);
+        cached = Hash256.fromBytes(scratch.hash);
+        this.hash = cached;
+        return cached;
+    }
 
-        try {
-            String hashStr = SHA2Str(s);
+    /**
+     * A copy of this block that belongs to no chain, to be changed and stored again with ChainStore.set()
+     * @return
+     */
+    Block copy(){
+        Block copy = new Block(this.index, (Timestamp) this.timestamp.clone(), this.data, this.difficulty);
+        //The transactions are an unmodifiable list
+        copy.transactions = this.transactions;
+        copy.merkleRoot = this.merkleRoot;
+        copy.previousHash = this.previousHash;
+        copy.nonce = this.nonce;
+        copy.hash = this.hash;
+        return copy;
+    }
 
-            return hashStr;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+    /**
+     * Drop the memoized hash and tell the owning chain that this block has to be verified again.
+     * Called by every setter before the field changes.
+     */
+    private void changed(){
+        this.hash = null;
+        if(this.owner != null){
+            this.owner.blockChanged(this.index);
         }
     }
 
@@ -105,6 +200,38 @@ public class Block {
         return this.data;
     }
 
+    /**
+     * Simple getter method
+     * @return the transactions of this block, a single one unless it was mined as a batch
+     */
+    public List<String> getTransactions(){
+        return this.transactions != null ? this.transactions : List.of(this.data);
+    }
+
+    /**
+     * Simple getter method
+     * @return the Merkle root of a batch block, null for a single transaction block
+     */
+    public String getMerkleRoot(){
+        return this.merkleRoot;
+    }
+
+    /**
+     * The inclusion proof of one transaction of this block, see MerkleTree.
+     * A single transaction block has the transaction itself in its header, so its proof is empty.
+     * @param position
+     * @return
+     */
+    public String[] proof(int position){
+        if(this.transactions == null){
+            if(position != 0){
+                throw new IndexOutOfBoundsException("Transaction " + position + " of 1");
+            }
+            return new String[0];
+        }
+        return new MerkleTree(this.transactions).proof(position);
+    }
+
     /**
      * Simple getter method
      * @return
@@ -113,6 +240,14 @@ public class Block {
         return this.difficulty;
     }
 
+    /**
+     * Simple getter method
+     * @return the number of hashes the last proof of work computed
+     */
+    public long getHashesTried() {
+        return this.hashesTried;
+    }
+
     /**
      * Simple getter method
      * @return
@@ -133,7 +268,7 @@ public class Block {
      * Simple getter method
      * @return
      */
-    public String getPreviousHash() {
+    public Hash256 getPreviousHash() {
         return this.previousHash;
     }
 
@@ -154,28 +289,143 @@ public class Block {
      * If the hash does not have the appropriate number of leading hex zeroes,
      * it increments the nonce by 1 and tries again.
      * It continues this process, burning electricity and CPU cycles, until it gets lucky and finds a good hash.
-     * @return a String with a hash that has the appropriate number of leading hex zeroes.
+     * @return a hash that has the appropriate number of leading hex zeroes.
      * The difficulty value is already in the block. This is the minimum number of hex 0's a proper hash must have.
      */
-    public String proofOfWork(){
-        this.nonce = BigInteger.valueOf(0);
-        String hash = calculateHash();
-        while(true){
-            if(hash.substring(0, this.difficulty).equals("0".repeat(this.difficulty))){
-                return hash;
-            } else {
-                this.nonce = this.nonce.add(BigInteger.valueOf(1));
+    public Hash256 proofOfWork(){
+        //The header is encoded once, each attempt only hashes a new primitive nonce
+        HeaderHasher hasher = new HeaderHasher(this);
+        HeaderHasher.Scratch scratch = new HeaderHasher.Scratch();
+        long candidate = 0;
+        while(!hasher.tryNonce(candidate, scratch)){
+            candidate++;
+        }
+
+        this.nonce = BigInteger.valueOf(candidate);
+        this.hashesTried = candidate + 1;
+        this.hash = Hash256.fromBytes(scratch.hash);
+        return this.hash;
+    }
+
+    /**
+     * Multi-threaded version of proofOfWork().
+     * The nonce space is split across the worker threads: worker t tries t, t + threads, t + 2 * threads, ...
+     * Once a worker finds a good hash it publishes its nonce, and every worker stops as soon as its
+     * next candidate is larger than the best nonce found so far.
+     * That way the result is always the smallest good nonce, i.e. the same nonce and hash as the sequential loop.
+     * The workers are always dedicated platform threads, even a single one, so that mining never
+     * occupies the carrier thread of a virtual thread serving a client.
+     * @param threads number of worker threads, at least 1
+     * @return a hash that has the appropriate number of leading hex zeroes.
+     */
+    public Hash256 proofOfWork(int threads){
+        return proofOfWork(threads, null);
+    }
+
+    /**
+     * proofOfWork(threads) reporting the work of every worker to sampler as it goes
+     * @param threads
+     * @param sampler null to not report
+     * @return
+     */
+    public Hash256 proofOfWork(int threads, HashRateSampler sampler){
+        return proofOfWork(threads, sampler, null);
+    }
+
+    /**
+     * proofOfWork(threads, sampler) within the bounds of job.
+     * Every worker reports its attempts to the job every MiningJob.CHECK_EVERY nonces,
+     * and once the job says stop every worker stops at its next candidate.
+     * A stopped search leaves the nonce and the hash of the block as they were.
+     * @param threads
+     * @param sampler null to not report
+     * @param job null to mine until a nonce is found
+     * @return
+     * @throws MiningJob.Stopped if the job stopped first
+     */
+    public Hash256 proofOfWork(int threads, HashRateSampler sampler, MiningJob job){
+        threads = Math.max(1, threads);
+
+        HeaderHasher hasher = new HeaderHasher(this);
+        //Smallest good nonce found by any worker so far, -1 once the search was stopped
+        AtomicLong found = new AtomicLong(Long.MAX_VALUE);
+        LongAdder tried = new LongAdder();
+
+        Thread[] workers = new Thread[threads];
+        final int stride = threads;
+        for(int t = 0; t < threads; t++){
+            final long first = t;
+            workers[t] = new Thread(() -> {
+                HeaderHasher.Scratch scratch = new HeaderHasher.Scratch();
+                long attempts = 0;
+                long reported = 0;
+                long checked = 0;
+                long since = System.nanoTime();
+                for(long candidate = first; candidate < found.get(); candidate += stride){
+                    attempts++;
+                    if(hasher.tryNonce(candidate, scratch)){
+                        found.accumulateAndGet(candidate, Math::min);
+                        break;
+                    }
+                    if(sampler != null && (attempts & (HashRateSampler.REPORT_EVERY - 1)) == 0){
+                        long now = System.nanoTime();
+                        sampler.report(attempts - reported, now - since);
+                        reported = attempts;
+                        since = now;
+                    }
+                    if(job != null && (attempts & (MiningJob.CHECK_EVERY - 1)) == 0){
+                        boolean stop = job.report(attempts - checked);
+                        checked = attempts;
+                        if(stop){
+                            found.set(-1);
+                            break;
+                        }
+                    }
+                }
+                tried.add(attempts);
+                if(job != null){
+                    job.count(attempts - checked);
+                }
+                if(sampler != null){
+                    sampler.report(attempts - reported, System.nanoTime() - since);
+                }
+            }, "miner-" + this.index + "-" + t);
+            workers[t].start();
+        }
+
+        //Wait until every worker has passed the winning nonce
+        try {
+            for(Thread worker : workers){
+                worker.join();
             }
-            hash = calculateHash();
+        } catch (InterruptedException e) {
+            //Make every worker stop before giving up
+            found.set(-1);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        this.hashesTried = tried.sum();
+        if(found.get() < 0){
+            throw new MiningJob.Stopped(job.getStopReason());
         }
+        this.nonce = BigInteger.valueOf(found.get());
+        HeaderHasher.Scratch scratch = new HeaderHasher.Scratch();
+        hasher.tryNonce(found.get(), scratch);
+        this.hash = Hash256.fromBytes(scratch.hash);
+        return this.hash;
     }
 
     /**
      * Simple setter method
+     * The block then holds data as its single transaction, even if it was a batch
      * @param data
      */
     public void setData(String data) {
+        changed();
         this.data = data;
+        this.transactions = null;
+        this.merkleRoot = null;
     }
 
     /**
@@ -183,6 +433,10 @@ public class Block {
      * @param difficulty
      */
     public void setDifficulty(int difficulty) {
+        changed();
+        if(this.owner != null){
+            this.owner.difficultyChanged(this.difficulty, difficulty);
+        }
         this.difficulty = difficulty;
     }
 
@@ -191,6 +445,7 @@ public class Block {
      * @param index
      */
     public void setIndex(int index) {
+        changed();
         this.index = index;
     }
 
@@ -199,6 +454,7 @@ public class Block {
      * @param nonce
      */
     public void setNonce(BigInteger nonce) {
+        changed();
         this.nonce = nonce;
     }
 
@@ -206,7 +462,8 @@ public class Block {
      * Simple setter method
      * @param previousHash
      */
-    public void setPreviousHash(String previousHash) {
+    public void setPreviousHash(Hash256 previousHash) {
+        changed();
         this.previousHash = previousHash;
     }
 
@@ -215,6 +472,7 @@ public class Block {
      * @param timestamp
      */
     public void setTimestamp(Timestamp timestamp) {
+        changed();
         this.timestamp = timestamp;
     }
 
@@ -225,22 +483,111 @@ public class Block {
      */
     @Override
     public String toString(){
-        String s = "{\"index\" : ";
-        s += String.valueOf(this.index);
-        s += ",\"time stamp \" : \"";
-        s += this.timestamp.toString()+"\"";
-        s += ",\"Tx \" : \"";
-        s += this.data;
-        s += "\"";
-        s += ",\"PrevHash\" : \"";
-        s += this.previousHash;
-        s += "\"";
-        s += ",\"nonce\" : ";
-        s += this.nonce;
-        s += ",\"difficulty\" : ";
-        s += String.valueOf(this.difficulty);
-        s += "}";
-        return s;
+        StringWriter out = new StringWriter();
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            //A StringWriter never throws
+            throw new RuntimeException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Write the JSON format of this block, the same as toString(), directly to out.
+     * A single transaction goes under "Tx ", the transactions of a batch under "Txs" as an array.
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(Writer out) throws IOException {
+        out.write("{\"index\" : ");
+        out.write(String.valueOf(this.index));
+        out.write(",\"time stamp \" : \"");
+        out.write(this.timestamp.toString());
+        if(this.transactions == null){
+            out.write("\",\"Tx \" : ");
+            writeJsonString(out, this.data);
+        } else {
+            //A batch lists its transactions instead
+            out.write("\",\"Txs\" : ");
+            out.write(this.data);
+            out.write(",\"MerkleRoot\" : \"");
+            out.write(this.merkleRoot);
+            out.write("\"");
+        }
+        out.write(",\"PrevHash\" : \"");
+        out.write(String.valueOf(this.previousHash));
+        out.write("\",\"nonce\" : ");
+        out.write(String.valueOf(this.nonce));
+        out.write(",\"difficulty\" : ");
+        out.write(String.valueOf(this.difficulty));
+        out.write("}");
+    }
+
+    /**
+     * Write only the fields covered by the header hash, in the JSON format of writeTo().
+     * A batch block gives its Merkle root without the transactions, so the header stays small.
+     * @param out
+     * @throws IOException
+     */
+    public void writeHeaderTo(Writer out) throws IOException {
+        out.write("{\"index\" : ");
+        out.write(String.valueOf(this.index));
+        out.write(",\"time stamp \" : \"");
+        out.write(this.timestamp.toString());
+        if(this.merkleRoot == null){
+            out.write("\",\"Tx \" : ");
+            writeJsonString(out, this.data);
+        } else {
+            //The root commits to the number of transactions, which a proof needs
+            out.write("\",\"MerkleRoot\" : \"");
+            out.write(this.merkleRoot);
+            out.write("\",\"TxCount\" : ");
+            out.write(String.valueOf(this.transactions.size()));
+        }
+        out.write(",\"PrevHash\" : \"");
+        out.write(String.valueOf(this.previousHash));
+        out.write("\",\"nonce\" : ");
+        out.write(String.valueOf(this.nonce));
+        out.write(",\"difficulty\" : ");
+        out.write(String.valueOf(this.difficulty));
+        out.write("}");
+    }
+
+    /**
+     * Write value as a quoted JSON string, escaping quotes, backslashes and control characters
+     * @param out
+     * @param value
+     * @throws IOException
+     */
+    static void writeJsonString(Writer out, String value) throws IOException {
+        if(value == null){
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        int start = 0;
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if(c != '"' && c != '\\' && c >= 0x20){
+                continue;
+            }
+            //Flush the plain run before the character that needs escaping
+            out.write(value, start, i - start);
+            start = i + 1;
+            switch(c){
+                case '"': out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n"); break;
+                case '\r': out.write("\\r"); break;
+                case '\t': out.write("\\t"); break;
+                case '\b': out.write("\\b"); break;
+                case '\f': out.write("\\f"); break;
+                default: out.write(String.format("\\u%04x", (int) c));
+            }
+        }
+        out.write(value, start, value.length() - start);
+        out.write('"');
     }
 
 }
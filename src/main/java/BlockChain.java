@@ -1,6 +1,13 @@
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigInteger;
 import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Author: Changzhou Zheng
@@ -10,12 +17,29 @@ import java.util.Scanner;
  * Information from each block were reformatted by hashing. The time for each hashing is recorded as well.
  * As the difficulty goes up, each blockchain takes longer time to addBlock()
  * but takes almost the same time to verify and less time to react after a corrupted block is repaired.
+ *
+ * A blockchain can be shared by many threads, e.g. one per connected client.
+ * Changes are made by one writer at a time (writerLock), and the chain itself is guarded by a read-write lock.
+ * Mining a new block happens while only holding writerLock, the new block is appended under the write lock
+ * once its proof of work is done. So status, verify and view requests keep going while a block is being mined.
+ *
+ * A chain opened on a BlockLog reloads its blocks from disk and appends every added, corrupted or repaired block
+ * to the log. Writing the log only needs writerLock, so readers do not wait for the disk.
+ * Every checkpointInterval blocks the verified chain is snapshotted to a Checkpoint,
+ * so reopening the chain only replays and verifies the blocks added after the last checkpoint.
+ *
+ * The blocks live in a ChainStore, a list of Block objects by default or the columns of a ColumnChainStore
+ * for very long chains. Every change to a block is stored back with ChainStore.set().
+ *
+ * With a DifficultyRetarget set, the chain picks the difficulty of every added block from the recent mining times
+ * instead of taking the one the block was created with.
  */
 
 public class BlockChain {
 
     public static void main(String[] args) {
         BlockChain chain = new BlockChain();
+        chain.computeHashesPerSecond();
         Block genesis = new Block(0, chain.getTime(), "Genesis", 2);
         chain.addBlock(genesis);
 
@@ -38,7 +62,6 @@ public class BlockChain {
                 System.out.println("Current size of chain: " + chain.getChainSize());
                 System.out.println("Difficulty of most recent block: " + chain.getLatestBlock().getDifficulty());
                 System.out.println("Total difficulty for all blocks: " + chain.getTotalDifficulty());
-                chain.computeHashesPerSecond();
                 System.out.println("Approximate hashes per second on this machine: " + chain.getHashPerSecond());
                 System.out.println("Expected total hashes required for the whole chain: " + chain.getTotalExpectedHashes());
                 System.out.println("Nonce for most recent block: " + chain.getLatestBlock().getNonce());
@@ -64,9 +87,15 @@ public class BlockChain {
 
                 System.out.println("Total execution time to verify the chain was " + (endTime - startTime) + " milliseconds");
             } else if (choice == 3){
-                String chainOutput = chain.toString();
                 System.out.println("View the Blockchain");
-                System.out.println(chainOutput);
+                PrintWriter console = new PrintWriter(System.out);
+                try {
+                    chain.writeTo(console);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                console.println();
+                console.flush();
             } else if (choice == 4){
                 System.out.println("corrupt the Blockchain\n" +
                         "Enter block ID of block to corrupt");
@@ -75,14 +104,15 @@ public class BlockChain {
                 input.nextLine();
                 String transaction = input.nextLine();
 
-                Block corBlock = chain.chain.get(corruptID);
-                corBlock.setData(transaction);
+                chain.corruptBlock(corruptID, transaction);
 
                 System.out.println("Block " + corruptID + " now holds " + transaction);
             } else if (choice == 5){
                 startTime = System.currentTimeMillis();
                 chain.repairChain();
                 endTime = System.currentTimeMillis();
+                System.out.println("Mined " + chain.getLastRepairBlocks() + " blocks again using " +
+                        chain.getLastRepairHashes() + " hashes");
                 System.out.println("Total execution time required to repair the chain was " + (endTime - startTime) + " milliseconds");
             } else if (choice == 6){
                 System.exit(0);
@@ -90,13 +120,99 @@ public class BlockChain {
         }
     }
 
-    ArrayList<Block> chain;
-    String latestHash;
-    int hashesPerSecond;
+    ChainStore chain;
+    volatile Hash256 latestHash;
+    //Hashing speed of one mining thread, measured from the blocks this chain mines
+    final HashRateSampler hashRate = new HashRateSampler();
+    //Latencies and counters of this chain and the servers in front of it
+    final Metrics metrics = new Metrics();
+    //The proof of work running now, null if none. Only the holder of writerLock mines
+    private volatile MiningJob currentJob;
+    //Longest any proof of work may take, 0 for no limit
+    private volatile long maxMiningMillis;
+    //Picks the difficulty of added blocks, null to keep the difficulty they come with
+    private volatile DifficultyRetarget retarget;
+    int miningThreads;
+    ForkJoinPool verifyPool;
+    //Every block up to this index is known to be valid, i.e. linked to its parent and showing proof of work
+    volatile int verifiedUpTo;
+    int lastRepairBlocks;
+    long lastRepairHashes;
+    //Running totals over all blocks, updated on every change so status requests never walk the chain
+    int totalDifficulty;
+    BigInteger totalExpectedHashes;
+
+    //Below this many blocks a verification task hashes its blocks itself instead of splitting further
+    static final int VERIFY_SPLIT_THRESHOLD = 256;
+    static final int DEFAULT_CHECKPOINT_INTERVAL = 1000;
+    //Blocks copied under the read lock at a time by writeTo() and writeBlocks()
+    static final int WRITE_PAGE = 1024;
+
+    //Only one thread at a time may change the chain, held for the whole time a block is being mined
+    final ReentrantLock writerLock = new ReentrantLock();
+    //Guards the chain, readers share it, the writer only takes it to append or change blocks
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    //Background miner for submitted transactions, started on first use
+    private MiningQueue miningQueue;
+    //Where changes are persisted, null for a chain kept in memory only
+    private BlockLog log;
+    //A chain with a log writes a checkpoint every time its size reaches a multiple of this
+    int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
 
     public BlockChain(){
-        this.chain = new ArrayList<>();
-        this.latestHash = "";
+        this(new ListChainStore());
+    }
+
+    /**
+     * An empty chain keeping its blocks in store, or the chain already in store, which has to be verified
+     * @param store
+     */
+    public BlockChain(ChainStore store){
+        this.chain = store;
+        store.setOwner(this);
+        this.latestHash = Hash256.EMPTY;
+        this.verifiedUpTo = -1;
+        this.totalDifficulty = 0;
+        this.totalExpectedHashes = BigInteger.ZERO;
+        //Mine on every core by default
+        this.miningThreads = Runtime.getRuntime().availableProcessors();
+        this.verifyPool = ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Open the chain stored in a block log.
+     * The blocks covered by the checkpoint next to the log are trusted if the last of them still has the
+     * checkpoint hash and no later record changed any of them. The running totals over those blocks come from
+     * the checkpoint. The first isChainValid() only verifies the blocks after them.
+     * Those blocks were not replayed either, they stay in the log until they are read, see LogChainStore.
+     * @param log
+     */
+    public BlockChain(BlockLog log){
+        //The log read its blocks into the store the chain keeps them in
+        this(log.readChain());
+        this.log = log;
+        Checkpoint checkpoint;
+        try {
+            checkpoint = Checkpoint.read(log.getDir());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        int trusted = 0;
+        if(checkpoint != null && checkpoint.length <= this.chain.size() && checkpoint.records <= log.getRecordCount()
+                && log.firstIndexChangedSince(checkpoint.records) >= checkpoint.length
+                && this.chain.hash(checkpoint.length - 1).equals(checkpoint.hash)){
+            trusted = checkpoint.length;
+            this.totalDifficulty = checkpoint.totalDifficulty;
+            this.totalExpectedHashes = checkpoint.totalExpectedHashes;
+        }
+        for(int i = trusted; i < this.chain.size(); i++){
+            int difficulty = this.chain.difficulty(i);
+            this.totalDifficulty += difficulty;
+            this.totalExpectedHashes = this.totalExpectedHashes.add(expectedHashes(difficulty));
+        }
+        this.latestHash = log.getRecoveredHash();
+        this.verifiedUpTo = trusted - 1;
     }
 
     /**
@@ -115,45 +231,261 @@ public class BlockChain {
      * The chain hash now holds the hash of x.
      * The chain hash is not defined within a block but is defined within the blockchain.
      * The arrows are used to describe these hash pointers. If b contains the hash of a then we write a <-- b.
+     * Mining is bounded by maxMiningMillis only, see addBlock(newBlock, job) for other limits.
      * @param newBlock
      */
     public void addBlock(Block newBlock){
-        newBlock.setPreviousHash(this.latestHash);
-        this.chain.add(newBlock);
-        this.latestHash = newBlock.proofOfWork();
+        addBlock(newBlock, newMiningJob(newBlock.getDifficulty(), 0, 0));
     }
 
     /**
-     * This method computes exactly 2 million hashes and times how long that process takes.
-     * So, hashes per second is approximated as (2 million / number of seconds).
-     * It is run on start up and sets the instance variable hashesPerSecond.
-     * It uses a simple string - "00000000" to hash.
+     * addBlock(newBlock) within the limits of job. The block is not added if the job stops first.
+     * When retargeting, the difficulty of newBlock is replaced by the one the chain picks.
+     * @param newBlock
+     * @param job
+     * @throws MiningJob.Stopped if the job stopped before a nonce was found
      */
-    public void computeHashesPerSecond(){
-        long start = System.currentTimeMillis();
-        int i = 0;
-        while(i < 2000000){
+    public void addBlock(Block newBlock, MiningJob job){
+        this.writerLock.lock();
+        try {
+            //No other writer can run, so latestHash stays the hash of the parent while mining
+            newBlock.setIndex(this.chain.size());
+            newBlock.setPreviousHash(this.latestHash);
+            DifficultyRetarget retarget = this.retarget;
+            if(retarget != null){
+                int latest = this.chain.isEmpty() ? newBlock.getDifficulty() : getLatestBlock().getDifficulty();
+                newBlock.setDifficulty(retarget.nextDifficulty(latest));
+            }
+            Hash256 newHash = mine(newBlock, job);
+            //Only on disk blocks make it into the chain
+            persist(newBlock, newHash);
+
+            this.lock.writeLock().lock();
+            try {
+                this.chain.add(newBlock);
+                this.totalDifficulty += newBlock.getDifficulty();
+                this.totalExpectedHashes = this.totalExpectedHashes.add(expectedHashes(newBlock.getDifficulty()));
+                this.latestHash = newHash;
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+
+            if(this.log != null && this.chain.size() % this.checkpointInterval == 0){
+                checkpoint();
+            }
+        } finally {
+            this.writerLock.unlock();
+        }
+    }
+
+    /**
+     * Snapshot the chain to a Checkpoint next to its log, if the whole chain is valid.
+     * Only the blocks changed since the last verification are hashed. Other writers wait, readers do not.
+     * @return true if a checkpoint was written
+     */
+    public boolean checkpoint(){
+        if(this.log == null){
+            return false;
+        }
+        this.writerLock.lock();
+        try {
+            Checkpoint checkpoint;
+            this.lock.readLock().lock();
             try {
-                Block.SHA2Str("00000000");
-                i++;
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
+                if(this.chain.isEmpty() || firstInvalidBlock() >= 0 || !this.latestHash.equals(parentHash(this.chain.size()))){
+                    return false;
+                }
+                checkpoint = new Checkpoint(this.chain.size(), this.latestHash, this.totalDifficulty,
+                        this.totalExpectedHashes, this.log.getRecordCount(), this.log.getEnd(),
+                        this.log.getPosition(this.chain.size() - 1));
+            } finally {
+                this.lock.readLock().unlock();
             }
+            checkpoint.write(this.log.getDir());
+            return true;
+        } catch (IOException e) {
+            //The log still holds everything, only the next startup gets slower
+            System.out.println("Checkpoint failed: " + e.getMessage());
+            return false;
+        } finally {
+            this.writerLock.unlock();
         }
+    }
+
+    /**
+     * Simple getter method
+     * @return the number of blocks known to be valid without hashing them again
+     */
+    public int getVerifiedBlocks(){
+        return this.verifiedUpTo + 1;
+    }
+
+    /**
+     * Set how many blocks apart checkpoints are written
+     * @param checkpointInterval
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = Math.max(1, checkpointInterval);
+    }
 
-        long end = System.currentTimeMillis();
+    /**
+     * The queue mining submitted transactions in the background for this chain, started on first use
+     * @return
+     */
+    public synchronized MiningQueue getMiningQueue(){
+        if(this.miningQueue == null){
+            this.miningQueue = new MiningQueue(this);
+        }
+        return this.miningQueue;
+    }
 
-        //Finally, calculate time elapse by subtract the end by the start
-        this.hashesPerSecond = (int)(i/((end-start)/1000.00));
+    /**
+     * Replace the data of a block, the "corrupt the chain" command.
+     * @param index
+     * @param data
+     */
+    public void corruptBlock(int index, String data){
+        this.writerLock.lock();
+        try {
+            Block block;
+            this.lock.writeLock().lock();
+            try {
+                block = this.chain.get(index);
+                block.setData(data);
+                this.chain.set(index, block);
+            } finally {
+                this.lock.writeLock().unlock();
+            }
+            persist(block, this.latestHash);
+        } finally {
+            this.writerLock.unlock();
+        }
+    }
+
+    /**
+     * Proof of work for block on the mining threads within the limits of job,
+     * counted in the hash rate, the metrics and the retargeting window. Callers hold writerLock.
+     * @param block
+     * @param job shown as the current job while it runs
+     * @return the hash found
+     * @throws MiningJob.Stopped if the job stopped first
+     */
+    private Hash256 mine(Block block, MiningJob job){
+        DifficultyRetarget retarget = this.retarget;
+        this.currentJob = job;
+        long startTime = System.nanoTime();
+        try {
+            job.start(block.getIndex(), block.getDifficulty());
+            Hash256 hash = block.proofOfWork(this.miningThreads, this.hashRate, job);
+            this.metrics.recordMining(block.getHashesTried());
+            if(retarget != null){
+                retarget.recordBlock(block.getDifficulty(), System.nanoTime() - startTime);
+            }
+            return hash;
+        } catch (MiningJob.Stopped e) {
+            this.metrics.recordStoppedMining(job.getTried());
+            if(retarget != null){
+                retarget.recordStopped(job.getTried(), System.nanoTime() - startTime);
+            }
+            throw e;
+        } finally {
+            this.currentJob = null;
+        }
+    }
+
+    /**
+     * A job for mining a block of this chain, never allowed more than maxMiningMillis
+     * @param difficulty
+     * @param timeLimitMillis 0 for maxMiningMillis
+     * @param hashBudget 0 for no limit
+     * @return
+     */
+    public MiningJob newMiningJob(int difficulty, long timeLimitMillis, long hashBudget){
+        long limit = this.maxMiningMillis;
+        if(timeLimitMillis > 0 && (limit == 0 || timeLimitMillis < limit)){
+            limit = timeLimitMillis;
+        }
+        return new MiningJob(difficulty, limit, hashBudget);
+    }
+
+    /**
+     * Simple getter method
+     * @return the proof of work running now, null if none
+     */
+    public MiningJob getCurrentJob() {
+        return this.currentJob;
+    }
+
+    /**
+     * Simple setter method
+     * @param maxMiningMillis longest any proof of work may take, 0 for no limit
+     */
+    public void setMaxMiningMillis(long maxMiningMillis) {
+        this.maxMiningMillis = Math.max(0, maxMiningMillis);
+    }
+
+    /**
+     * Simple setter method
+     * @param retarget picks the difficulty of added blocks from now on, null to keep the one they come with
+     */
+    public void setRetarget(DifficultyRetarget retarget) {
+        this.retarget = retarget;
+    }
+
+    /**
+     * Simple getter method
+     * @return null if blocks keep their own difficulty
+     */
+    public DifficultyRetarget getRetarget() {
+        return this.retarget;
+    }
+
+    /**
+     * Append a new or changed block to the log, if the chain has one. Callers hold writerLock.
+     * @param block
+     * @param chainHash the chain hash once the change is done
+     */
+    private void persist(Block block, Hash256 chainHash){
+        if(this.log == null){
+            return;
+        }
+        try {
+            this.log.append(block, chainHash);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Called by a block of this chain before one of its fields changes.
+     * The block and everything after it need to be verified again.
+     * @param index
+     */
+    void blockChanged(int index){
+        this.verifiedUpTo = Math.min(this.verifiedUpTo, index - 1);
+    }
+
+    /**
+     * This method runs a short hashing benchmark to seed the hash rate before any block is mined.
+     * It is run on start up only, afterwards the rate follows the blocks actually mined, see HashRateSampler.
+     */
+    public void computeHashesPerSecond(){
+        this.hashRate.calibrate();
     }
 
     /**
      * return block at position i
+     * A ColumnChainStore builds the block for the caller, changing it does not change the chain.
      * @param i
      * @return block at postion i
      */
     public Block getBlock(int i){
-        return this.chain.get(i);
+        this.lock.readLock().lock();
+        try {
+            return this.chain.get(i);
+        } finally {
+            this.lock.readLock().unlock();
+        }
     }
 
     /**
@@ -161,15 +493,52 @@ public class BlockChain {
      * @return the size of the chain in blocks.
      */
     public int getChainSize(){
-        return this.chain.size();
+        this.lock.readLock().lock();
+        try {
+            return this.chain.size();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Simple getter method
+     * @return the number of threads used by proof of work on this chain
+     */
+    public int getMiningThreads() {
+        return this.miningThreads;
+    }
+
+    /**
+     * Set the number of threads used by proof of work on this chain, 1 means mine sequentially
+     * @param miningThreads
+     */
+    public void setMiningThreads(int miningThreads) {
+        this.miningThreads = Math.max(1, miningThreads);
+    }
+
+    /**
+     * Simple getter method
+     * @return the pool used to hash blocks in parallel while verifying the chain
+     */
+    public ForkJoinPool getVerifyPool() {
+        return this.verifyPool;
+    }
+
+    /**
+     * Set the pool used to hash blocks in parallel while verifying the chain
+     * @param verifyPool
+     */
+    public void setVerifyPool(ForkJoinPool verifyPool) {
+        this.verifyPool = verifyPool;
     }
 
     /**
      * get hashes per second
-     * @return the instance variable approximating the number of hashes per second.
+     * @return the moving average of hashes per second of one mining thread, O(1)
      */
     public int getHashPerSecond() {
-        return hashesPerSecond;
+        return this.hashRate.getHashesPerSecond();
     }
 
     /**
@@ -177,8 +546,13 @@ public class BlockChain {
      * @return a reference to the most recently added Block.
      */
     public Block getLatestBlock(){
-        Block lastBlock = this.chain.get(this.chain.size()-1);
-        return lastBlock;
+        this.lock.readLock().lock();
+        try {
+            Block lastBlock = this.chain.get(this.chain.size()-1);
+            return lastBlock;
+        } finally {
+            this.lock.readLock().unlock();
+        }
     }
 
     /**
@@ -191,33 +565,57 @@ public class BlockChain {
     }
 
     /**
-     * Compute and return the total difficulty of all blocks on the chain. Each block knows its own difficulty.
+     * Return the total difficulty of all blocks on the chain. Each block knows its own difficulty.
+     * The total is kept up to date by addBlock() and difficultyChanged().
      * @return totalDifficulty
      */
     public int getTotalDifficulty(){
-        int total = 0;
-        Block curBlock;
-        for(int i = 0; i < this.chain.size(); i++){
-            curBlock = this.chain.get(i);
-            total += curBlock.getDifficulty();
+        this.lock.readLock().lock();
+        try {
+            return this.totalDifficulty;
+        } finally {
+            this.lock.readLock().unlock();
         }
-
-        return total;
     }
 
     /**
-     * Compute and return the expected number of hashes required for the entire chain.
+     * Return the expected number of hashes required for the entire chain.
+     * The total is kept up to date by addBlock() and difficultyChanged(), and is exact for any difficulty.
      * @return totalExpectedHashes
      */
-    public double getTotalExpectedHashes(){
-        double total = 0;
-        int curDif = 0;
-        for(int i = 0; i < this.chain.size(); i ++){
-            curDif = this.chain.get(i).getDifficulty();
-            total += Math.pow(16, curDif);
+    public BigInteger getTotalExpectedHashes(){
+        this.lock.readLock().lock();
+        try {
+            return this.totalExpectedHashes;
+        } finally {
+            this.lock.readLock().unlock();
         }
+    }
+
+    /**
+     * Expected number of hashes to find a proof of work, 16 to the power of difficulty
+     * @param difficulty
+     * @return
+     */
+    static BigInteger expectedHashes(int difficulty){
+        return BigInteger.ONE.shiftLeft(4 * difficulty);
+    }
 
-        return total;
+    /**
+     * Called by a block of this chain before its difficulty changes, to keep the running totals right
+     * Takes the write lock, so readers never see one total changed without the other.
+     * @param oldDifficulty
+     * @param newDifficulty
+     */
+    void difficultyChanged(int oldDifficulty, int newDifficulty){
+        this.lock.writeLock().lock();
+        try {
+            this.totalDifficulty += newDifficulty - oldDifficulty;
+            this.totalExpectedHashes = this.totalExpectedHashes
+                    .subtract(expectedHashes(oldDifficulty)).add(expectedHashes(newDifficulty));
+        } finally {
+            this.lock.writeLock().unlock();
+        }
     }
 
     /**
@@ -230,33 +628,101 @@ public class BlockChain {
      * The first check will involve a computation of a hash in Block 0 and a comparison with the hash pointer in Block 1.
      * If they match and if the proof of work is correct, go and visit the next block in the chain.
      * At the end, check that the chain hash is also correct.
+     * Only the blocks added or changed since the last verification are hashed again, see firstInvalidBlock().
      * @return "TRUE" if the chain is valid, otherwise return "FALSE"
      */
     public String isChainValid(){
-        Block curBlock;
-        String curHash;
-        String lastHash = "";
+        this.lock.readLock().lock();
+        try {
+            int invalid = firstInvalidBlock();
+            if(invalid >= 0){
+                if(!this.chain.previousHash(invalid).equals(parentHash(invalid))){
+                    return "FALSE";
+                }
+                return "False\nImproper hash on node " + invalid + " Does not begin with " + "0".repeat(this.chain.difficulty(invalid));
+            }
 
-        for(int i = 0; i < this.chain.size(); i++){
-            curBlock = this.chain.get(i);
-            if(!curBlock.previousHash.equals(lastHash)){
+            //If the latest block has the same hash in the blockchain, return "TRUE"
+            if(latestHash.equals(parentHash(this.chain.size()))){
+                return "TRUE";
+            } else {
                 return "FALSE";
             }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
 
-            curHash = curBlock.calculateHash();
-            //Check if the difficulties are different
-            if(!curHash.substring(0, curBlock.difficulty).equals("0".repeat(curBlock.difficulty))){
-                return "False\\nImproper hash on node " + i + " Does not begin with " + "0".repeat(curBlock.difficulty);
+    /**
+     * Find the first block that does not hold the hash of its parent or whose hash does not show proof of work.
+     * Blocks up to verifiedUpTo have not changed since they were last verified and are skipped.
+     * The hashes of the other blocks are computed in parallel on the verify pool,
+     * then the blocks are checked in order, so the lowest failing block is found.
+     * Afterwards verifiedUpTo points to the last block before the first invalid one.
+     * Callers hold the read or the write lock. Concurrent verifiers see the same blocks and memoize the same hashes.
+     * @return the index of the first invalid block, -1 if every block is valid
+     */
+    int firstInvalidBlock(){
+        Hash256 curHash;
+        int first = this.verifiedUpTo + 1;
+        Hash256 lastHash = parentHash(first);
+
+        Hash256[] hashes = new Hash256[this.chain.size() - first];
+        this.verifyPool.invoke(new HashTask(hashes, first, first, this.chain.size()));
+
+        for(int i = first; i < this.chain.size(); i++){
+            curHash = hashes[i - first];
+            if(!this.chain.previousHash(i).equals(lastHash) || !curHash.hasLeadingZeros(this.chain.difficulty(i))){
+                this.verifiedUpTo = i - 1;
+                return i;
             }
-
             lastHash = curHash;
         }
 
-        //If the latest block has the same hash in the blockchain, return "TRUE"
-        if(latestHash.equals(lastHash)){
-            return "TRUE";
-        } else {
-            return "FALSE";
+        this.verifiedUpTo = this.chain.size() - 1;
+        return -1;
+    }
+
+    /**
+     * The hash block i must hold as its previous hash.
+     * Hashes are memoized by the store, so this only hashes the parent if it changed.
+     * @param i
+     * @return the hash of block i - 1, or the empty hash for the genesis block
+     */
+    Hash256 parentHash(int i){
+        return i == 0 ? Hash256.EMPTY : this.chain.hash(i - 1);
+    }
+
+    /**
+     * Fork/join task computing the hashes of the blocks in [from, to) into hashes,
+     * the hash of block i goes to hashes[i - base]
+     * Never serialized, it only runs in the pool of its chain
+     */
+    @SuppressWarnings("serial")
+    class HashTask extends RecursiveAction {
+        final Hash256[] hashes;
+        final int base;
+        final int from;
+        final int to;
+
+        HashTask(Hash256[] hashes, int base, int from, int to){
+            this.hashes = hashes;
+            this.base = base;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute(){
+            if(this.to - this.from <= VERIFY_SPLIT_THRESHOLD){
+                for(int i = this.from; i < this.to; i++){
+                    this.hashes[i - this.base] = chain.hash(i);
+                }
+            } else {
+                int mid = (this.from + this.to) >>> 1;
+                invokeAll(new HashTask(this.hashes, this.base, this.from, mid),
+                        new HashTask(this.hashes, this.base, mid, this.to));
+            }
         }
     }
 
@@ -266,19 +732,138 @@ public class BlockChain {
      * After this routine is run, the chain will be valid.
      * The routine does not modify any difficulty values.
      * It computes new proof of work based on the difficulty specified in the Block.
+     *
+     * Every block before the first invalid one keeps its nonce, only that block and the blocks after it are mined again.
+     * The number of blocks mined again and the hashes it took are kept in
+     * lastRepairBlocks and lastRepairHashes.
+     * Blocks are mined as copies while only writerLock is held, so readers go on during the repair;
+     * the write lock is taken just to store each repaired block, the way addBlock() does.
+     * Readers may see the chain repaired up to some block, it stays invalid until the last one is stored.
+     *
+     * Each block is mined as its own job, bounded by maxMiningMillis and shown as the current job.
+     * If one of them stops, the blocks repaired so far are kept and stored, the chain hash is left as it was,
+     * and the chain is still invalid from the block that stopped on.
+     * @throws MiningJob.Stopped if mining a block stopped
      */
     public void repairChain(){
-        Block curBlock;
-        String newHash = "";
-
-        for(int i = 0; i < this.chain.size(); i++){
-            curBlock = this.chain.get(i);
-            //Redefine the precious hash by null
-            curBlock.setPreviousHash(newHash);
-            newHash = curBlock.proofOfWork();
+        this.writerLock.lock();
+        try {
+            //As the only writer, the blocks cannot change or be added until the repair is done
+            int first;
+            int size = this.chain.size();
+            //Blocks from first up to here were changed, and whether the repair stopped half way
+            int changed = size;
+            MiningJob.Stopped stopped = null;
+            Hash256 oldHash = this.latestHash;
+            Hash256 newHash;
+            this.lock.readLock().lock();
+            try {
+                first = firstInvalidBlock();
+                newHash = parentHash(first < 0 ? size : first);
+            } finally {
+                this.lock.readLock().unlock();
+            }
+            this.lastRepairBlocks = 0;
+            this.lastRepairHashes = 0;
+
+            if(first >= 0){
+                for(int i = first; i < size; i++){
+                    //Mined apart from the chain, readers keep seeing the stored block meanwhile
+                    Block curBlock = this.chain.get(i).copy();
+                    curBlock.setPreviousHash(newHash);
+                    try {
+                        newHash = mine(curBlock, newMiningJob(curBlock.getDifficulty(), 0, 0));
+                    } catch (MiningJob.Stopped e) {
+                        //The block now points at its repaired parent but has no proof of work for it
+                        store(i, curBlock);
+                        stopped = e;
+                        changed = i + 1;
+                        this.lastRepairHashes += curBlock.getHashesTried();
+                        break;
+                    }
+                    store(i, curBlock);
+                    this.lastRepairBlocks++;
+                    this.lastRepairHashes += curBlock.getHashesTried();
+                }
+            }
+
+            if(stopped == null){
+                this.lock.writeLock().lock();
+                try {
+                    this.latestHash = newHash;
+                    if(first >= 0){
+                        //Every block was just mined again on top of its parent
+                        this.verifiedUpTo = size - 1;
+                    }
+                } finally {
+                    this.lock.writeLock().unlock();
+                }
+            }
+
+            //Still the only writer, so the repaired blocks cannot change while they are written.
+            //A fixed chain hash alone is stored with the latest block
+            if(first < 0 && !this.latestHash.equals(oldHash) && !this.chain.isEmpty()){
+                first = this.chain.size() - 1;
+            }
+            if(first >= 0){
+                for(int i = first; i < changed; i++){
+                    persist(this.chain.get(i), this.latestHash);
+                }
+            }
+            if(stopped != null){
+                throw stopped;
+            }
+        } finally {
+            this.writerLock.unlock();
+        }
+    }
+
+    /**
+     * Store a block mined again by repairChain() in place of block i. Callers hold writerLock.
+     * @param i
+     * @param block
+     */
+    private void store(int i, Block block){
+        this.lock.writeLock().lock();
+        try {
+            this.chain.set(i, block);
+        } finally {
+            this.lock.writeLock().unlock();
         }
+    }
+
+    /**
+     * Close the log of this chain, if it has one
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if(this.log != null){
+            this.log.close();
+        }
+    }
 
-        this.latestHash = newHash;
+    /**
+     * Simple getter method
+     * @return
+     */
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Simple getter method
+     * @return the number of blocks mined again by the last repairChain()
+     */
+    public int getLastRepairBlocks() {
+        return this.lastRepairBlocks;
+    }
+
+    /**
+     * Simple getter method
+     * @return the number of hashes computed by the last repairChain()
+     */
+    public long getLastRepairHashes() {
+        return this.lastRepairHashes;
     }
 
     /**
@@ -287,19 +872,97 @@ public class BlockChain {
      */
     @Override
     public String toString(){
-        String output = "{\"ds_chain\" : [";
-        for(int i = 0; i < this.chain.size(); i++){
-            output += this.chain.get(i);
-            if(i != this.chain.size()-1){
-                output += ",\n";
+        StringWriter out = new StringWriter();
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            //A StringWriter never throws
+            throw new RuntimeException(e);
+        }
+        return out.toString();
+    }
 
-            } else {
-                output += "\n";
+    /**
+     * Write the JSON format of the blockchain, the same as toString(), block by block to out.
+     * Nothing but a page of blocks is held in memory, so the chain can be sent to a socket whatever its length.
+     * The read lock is only held while a page is copied, never while out is written to, so a client that stops reading
+     * does not keep writers, and the readers queued behind them, waiting. A chain changed meanwhile is written
+     * with the pages copied before the change as they were, like a client paging through it would see it.
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(Writer out) throws IOException {
+        int size;
+        Hash256 chainHash;
+        this.lock.readLock().lock();
+        try {
+            size = this.chain.size();
+            chainHash = this.latestHash;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        out.write("{\"ds_chain\" : [");
+        Block[] page = new Block[Math.min(size, WRITE_PAGE)];
+        for(int first = 0; first < size; first += WRITE_PAGE){
+            int count = copyBlocks(page, first, Math.min(size, first + WRITE_PAGE));
+            for(int i = 0; i < count; i++){
+                page[i].writeTo(out);
+                if(first + i != size-1){
+                    out.write(",\n");
+                } else {
+                    out.write("\n");
+                }
             }
         }
 
-        output += "], \"chainHash\":\"" + this.latestHash + "\"}";
-        return output;
+        out.write("], \"chainHash\":\"" + chainHash + "\"}");
+    }
+
+    /**
+     * Write the blocks in [from, to) as a JSON array to out, each block in the same format as Block.toString().
+     * Only the requested blocks are visited, so the cost depends on the page size and not on the chain length.
+     * Like writeTo(), the read lock is only held while a page of blocks is copied.
+     * @param out
+     * @param from first block, inclusive
+     * @param to last block, exclusive
+     * @throws IOException
+     */
+    public void writeBlocks(Writer out, int from, int to) throws IOException {
+        out.write("[");
+        Block[] page = new Block[Math.max(0, Math.min(to - from, WRITE_PAGE))];
+        for(int first = from; first < to; first += WRITE_PAGE){
+            int count = copyBlocks(page, first, Math.min(to, first + WRITE_PAGE));
+            for(int i = 0; i < count; i++){
+                if(first + i != from){
+                    out.write(",");
+                }
+                page[i].writeTo(out);
+            }
+        }
+        out.write("]");
+    }
+
+    /**
+     * Copy the blocks in [from, to) into page under the read lock.
+     * A block the store keeps as it is may be changed once the lock is released, so it is copied,
+     * a view made for this call by the store already belongs to no chain.
+     * @param page
+     * @param from
+     * @param to
+     * @return the number of blocks copied
+     */
+    private int copyBlocks(Block[] page, int from, int to){
+        this.lock.readLock().lock();
+        try {
+            for(int i = from; i < to; i++){
+                Block block = this.chain.get(i);
+                page[i - from] = block.owner == this ? block.copy() : block;
+            }
+            return to - from;
+        } finally {
+            this.lock.readLock().unlock();
+        }
     }
 
 }
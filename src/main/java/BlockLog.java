@@ -0,0 +1,557 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Nov 23, 2022
+ *
+ * This class keeps a blockchain on disk as an append-only log, so a restarted server gets its chain back.
+ * The log is a directory of segment files blocks-00000.log, blocks-00001.log, ... of SEGMENT_BYTES each,
+ * every segment is memory mapped and records are written into the mapping and forced to disk.
+ *
+ * A record is [int length][int CRC32 of the payload][payload], the payload holds one block in binary
+ * together with the chain hash after the change. Every added, corrupted or repaired block is appended again,
+ * so replaying the log in order and keeping the last record of every index gives back the chain as it was.
+ * A length of 0 ends a segment, which happens when the next record did not fit and went to a new segment.
+ *
+ * The length is written after the payload and the checksum, so a write torn by a crash leaves either a length of 0
+ * or a record whose checksum does not match. Opening the log stops at the first such record,
+ * wipes it and drops any segment after it. Only whole records are ever replayed.
+ *
+ * The chain is read back into the ChainStore the log was opened with, one record at a time.
+ * If a Checkpoint next to the log still matches it, only the records after the checkpoint are replayed:
+ * the blocks it covers stay in the mapped segments and a LogChainStore decodes them when they are asked for.
+ * Where their records are is only looked up the first time one of them is needed, except for the last of them,
+ * whose position the checkpoint keeps. So the time to open the log does not grow with the length of the chain.
+ *
+ * The log also remembers which block every record is about, so a Checkpoint taken after n records can tell
+ * whether a block it covers was changed by a later record.
+ */
+
+public class BlockLog implements Closeable {
+
+    static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+    //length and checksum in front of every payload
+    static final int RECORD_HEADER_BYTES = 8;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final List<Segment> segments = new ArrayList<>();
+    //Where the next record goes in the last segment
+    private int writePosition;
+    //Block index of every record from record recordBase on, in log order
+    private int[] recordIndexes = new int[1024];
+    private int recordCount;
+    private int recordBase;
+    //Where the latest record of every block starts, as segment << 32 | offset, -1 if not looked up yet
+    private long[] positions = newPositions(1024);
+    //The blocks before covered were left in the log by a checkpoint ending at coveredEnd, see indexCovered()
+    private int covered;
+    private long coveredEnd;
+    private boolean coveredIndexed = true;
+    //The chain read back when the log was opened, handed out once by readChain()
+    private ChainStore recovered;
+    private Hash256 recoveredHash;
+
+    /**
+     * Open the log in dir, creating the directory if needed, and read back the chain it holds as Block objects
+     * @param dir
+     * @throws IOException
+     */
+    public BlockLog(Path dir) throws IOException {
+        this(dir, new ListChainStore());
+    }
+
+    /**
+     * Open the log in dir, creating the directory if needed, and read back the chain it holds into store
+     * @param dir
+     * @param store an empty store
+     * @throws IOException
+     */
+    public BlockLog(Path dir, ChainStore store) throws IOException {
+        this(dir, SEGMENT_BYTES, store);
+    }
+
+    BlockLog(Path dir, int segmentBytes, ChainStore store) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(dir)) {
+            files = listing.filter(p -> p.getFileName().toString().matches("blocks-\\d{5}\\.log")).sorted().toList();
+        }
+        for(Path file : files){
+            this.segments.add(new Segment(file, (int) Files.size(file)));
+        }
+        recover(store);
+    }
+
+    /**
+     * One mapped segment file
+     */
+    private static class Segment {
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Segment(Path path, int size) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Replay the segments into blocks, stop at the first torn record and cut the log there.
+     * If the checkpoint matches the log, replay starts where it ends and the blocks it covers stay in the log.
+     * @param blocks
+     * @throws IOException
+     */
+    private void recover(ChainStore blocks) throws IOException {
+        Hash256 chainHash = Hash256.EMPTY;
+        CRC32 crc = new CRC32();
+        int first = 0;
+        int start = 0;
+
+        Checkpoint checkpoint = Checkpoint.read(this.dir);
+        if(checkpoint != null && matches(checkpoint)){
+            blocks = new LogChainStore(this, checkpoint.length, blocks.startingAt(checkpoint.length));
+            chainHash = checkpoint.hash;
+            this.recordCount = this.recordBase = checkpoint.records;
+            this.positions = newPositions(Math.max(this.positions.length, checkpoint.length));
+            this.positions[checkpoint.length - 1] = checkpoint.last;
+            this.covered = checkpoint.length;
+            this.coveredEnd = checkpoint.end;
+            this.coveredIndexed = false;
+            first = segmentOf(checkpoint.end);
+            start = offsetOf(checkpoint.end);
+        }
+
+        for(int s = first; s < this.segments.size(); s++){
+            MappedByteBuffer buffer = this.segments.get(s).buffer;
+            int position = s == first ? start : 0;
+            boolean torn = false;
+            while(position + RECORD_HEADER_BYTES <= buffer.capacity()){
+                int length = buffer.getInt(position);
+                if(length == 0){
+                    break;
+                }
+                if(length < 0 || length > buffer.capacity() - position - RECORD_HEADER_BYTES){
+                    torn = true;
+                    break;
+                }
+                ByteBuffer payload = buffer.slice(position + RECORD_HEADER_BYTES, length);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if((int) crc.getValue() != buffer.getInt(position + 4)){
+                    torn = true;
+                    break;
+                }
+                Block block = decode(payload);
+                if(block.index < blocks.size()){
+                    blocks.set(block.index, block);
+                } else if(block.index == blocks.size()){
+                    blocks.add(block);
+                } else {
+                    //A gap in the indexes can only come from a damaged record
+                    torn = true;
+                    break;
+                }
+                chainHash = readHash(payload);
+                noteRecord(block.index, s, position);
+                position += RECORD_HEADER_BYTES + length;
+            }
+
+            this.writePosition = position;
+            if(torn){
+                System.out.println("Block log damaged in " + this.segments.get(s).path + " at byte " + position + ", dropping the rest");
+                cut(s, position);
+                break;
+            }
+        }
+
+        this.recovered = blocks;
+        this.recoveredHash = chainHash;
+    }
+
+    /**
+     * Whether the log still holds what checkpoint was taken of: its end lies in the log
+     * and the last block it covers is still there with the checkpoint hash
+     * @param checkpoint
+     * @return
+     */
+    private boolean matches(Checkpoint checkpoint){
+        if(checkpoint.length <= 0 || segmentOf(checkpoint.end) >= this.segments.size()
+                || offsetOf(checkpoint.end) > this.segments.get(segmentOf(checkpoint.end)).buffer.capacity()
+                || checkpoint.last >= checkpoint.end){
+            return false;
+        }
+        ByteBuffer payload = payloadAt(checkpoint.last);
+        if(payload == null){
+            return false;
+        }
+        Block block = decode(payload);
+        return block.index == checkpoint.length - 1 && block.calculateHash().equals(checkpoint.hash);
+    }
+
+    /**
+     * The payload of the record starting at position
+     * @param position segment << 32 | offset
+     * @return the payload, null if there is no whole record with a matching checksum
+     */
+    private ByteBuffer payloadAt(long position){
+        int s = segmentOf(position);
+        int offset = offsetOf(position);
+        if(s >= this.segments.size()){
+            return null;
+        }
+        MappedByteBuffer buffer = this.segments.get(s).buffer;
+        if(offset < 0 || offset + RECORD_HEADER_BYTES > buffer.capacity()){
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if(length <= 0 || length > buffer.capacity() - offset - RECORD_HEADER_BYTES){
+            return null;
+        }
+        ByteBuffer payload = buffer.slice(offset + RECORD_HEADER_BYTES, length);
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue() == buffer.getInt(offset + 4) ? payload : null;
+    }
+
+    /**
+     * Read the block at index from its latest record. Only meant for the blocks a checkpoint left in the log,
+     * blocks replayed or appended since are in the store of the chain.
+     * @param index
+     * @return a new Block without owner
+     */
+    Block readBlock(int index){
+        ByteBuffer payload;
+        synchronized (this) {
+            payload = payloadAt(getPosition(index));
+        }
+        if(payload == null){
+            throw new IllegalStateException("Block log record of block " + index + " is damaged");
+        }
+        return decode(payload);
+    }
+
+    /**
+     * Look up where the latest record before the checkpoint end of every covered block is.
+     * Only the headers and block indexes of those records are read.
+     */
+    private void indexCovered(){
+        long[] found = newPositions(this.covered);
+        int last = segmentOf(this.coveredEnd);
+        for(int s = 0; s <= last; s++){
+            MappedByteBuffer buffer = this.segments.get(s).buffer;
+            int end = s == last ? offsetOf(this.coveredEnd) : buffer.capacity();
+            int position = 0;
+            while(position + RECORD_HEADER_BYTES <= end){
+                int length = buffer.getInt(position);
+                if(length <= 0){
+                    break;
+                }
+                //The block index is the first field of every payload
+                int index = buffer.getInt(position + RECORD_HEADER_BYTES);
+                if(index >= 0 && index < this.covered){
+                    found[index] = ((long) s << 32) | position;
+                }
+                position += RECORD_HEADER_BYTES + length;
+            }
+        }
+        //Records replayed or appended since the checkpoint are newer
+        for(int i = 0; i < this.covered; i++){
+            if(this.positions[i] < 0){
+                this.positions[i] = found[i];
+            }
+        }
+        this.coveredIndexed = true;
+    }
+
+    /**
+     * Wipe segment s from position on and delete every later segment
+     * @param s
+     * @param position
+     * @throws IOException
+     */
+    private void cut(int s, int position) throws IOException {
+        MappedByteBuffer buffer = this.segments.get(s).buffer;
+        for(int i = position; i < buffer.capacity(); i++){
+            buffer.put(i, (byte) 0);
+        }
+        buffer.force();
+        while(this.segments.size() > s + 1){
+            Segment dropped = this.segments.remove(this.segments.size() - 1);
+            dropped.channel.close();
+            Files.delete(dropped.path);
+        }
+    }
+
+    /**
+     * The blocks read back when the log was opened, in chain order, without owner.
+     * Only the first call gets them, later calls get an empty store.
+     * @return
+     */
+    public synchronized ChainStore readChain(){
+        ChainStore blocks = this.recovered;
+        this.recovered = new ListChainStore();
+        return blocks;
+    }
+
+    /**
+     * Simple getter method
+     * @return the chain hash stored with the last record read back, the empty hash for an empty log
+     */
+    public Hash256 getRecoveredHash(){
+        return this.recoveredHash;
+    }
+
+    /**
+     * Append a block and the chain hash after adding or changing it, and force the record to disk
+     * @param block
+     * @param chainHash
+     * @throws IOException
+     */
+    public synchronized void append(Block block, Hash256 chainHash) throws IOException {
+        byte[] payload = encode(block, chainHash);
+        int recordBytes = RECORD_HEADER_BYTES + payload.length;
+
+        if(this.segments.isEmpty() || this.writePosition + recordBytes > last().buffer.capacity()){
+            //The rest of the current segment stays 0, which readers take as its end
+            Path file = this.dir.resolve(String.format("blocks-%05d.log", this.segments.size()));
+            this.segments.add(new Segment(file, Math.max(this.segmentBytes, recordBytes)));
+            this.writePosition = 0;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        MappedByteBuffer buffer = last().buffer;
+        buffer.put(this.writePosition + RECORD_HEADER_BYTES, payload);
+        buffer.putInt(this.writePosition + 4, (int) crc.getValue());
+        //The length goes last, a record without it is not there yet
+        buffer.putInt(this.writePosition, payload.length);
+        buffer.force(this.writePosition, recordBytes);
+        noteRecord(block.index, this.segments.size() - 1, this.writePosition);
+        this.writePosition += recordBytes;
+    }
+
+    private void noteRecord(int index, int segment, int offset){
+        int record = this.recordCount - this.recordBase;
+        if(record == this.recordIndexes.length){
+            this.recordIndexes = Arrays.copyOf(this.recordIndexes, record * 2);
+        }
+        this.recordIndexes[record] = index;
+        this.recordCount++;
+        if(index >= this.positions.length){
+            long[] grown = newPositions(Math.max(index + 1, this.positions.length * 2));
+            System.arraycopy(this.positions, 0, grown, 0, this.positions.length);
+            this.positions = grown;
+        }
+        this.positions[index] = ((long) segment << 32) | offset;
+    }
+
+    private static long[] newPositions(int length){
+        long[] positions = new long[length];
+        Arrays.fill(positions, -1);
+        return positions;
+    }
+
+    private static int segmentOf(long position){
+        return (int) (position >>> 32);
+    }
+
+    private static int offsetOf(long position){
+        return (int) position;
+    }
+
+    /**
+     * Where the next record goes, for a Checkpoint
+     * @return segment << 32 | offset
+     */
+    public synchronized long getEnd(){
+        return this.segments.isEmpty() ? 0 : ((long) (this.segments.size() - 1) << 32) | this.writePosition;
+    }
+
+    /**
+     * Where the latest record of a block starts, for a Checkpoint
+     * @param index
+     * @return segment << 32 | offset
+     */
+    public synchronized long getPosition(int index){
+        if(!this.coveredIndexed && index < this.covered && this.positions[index] < 0){
+            indexCovered();
+        }
+        return this.positions[index];
+    }
+
+    /**
+     * Simple getter method
+     * @return the number of records in the log
+     */
+    public synchronized int getRecordCount(){
+        return this.recordCount;
+    }
+
+    /**
+     * The lowest block touched by a record at or after position first in the log
+     * @param first
+     * @return the block index, Integer.MAX_VALUE if no record came after first,
+     * 0 if first lies before the checkpoint the log was opened from
+     */
+    public synchronized int firstIndexChangedSince(int first){
+        first = Math.max(first, 0);
+        if(first < this.recordBase){
+            return 0;
+        }
+        int lowest = Integer.MAX_VALUE;
+        for(int i = first - this.recordBase; i < this.recordCount - this.recordBase; i++){
+            lowest = Math.min(lowest, this.recordIndexes[i]);
+        }
+        return lowest;
+    }
+
+    /**
+     * Simple getter method
+     * @return the directory of the log
+     */
+    public Path getDir(){
+        return this.dir;
+    }
+
+    private Segment last(){
+        return this.segments.get(this.segments.size() - 1);
+    }
+
+    /**
+     * Close every segment. The mappings themselves are released by the garbage collector.
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for(Segment segment : this.segments){
+            segment.channel.close();
+        }
+        this.segments.clear();
+    }
+
+    /**
+     * Binary format of a record payload:
+     * index, timestamp millis and nanos, difficulty, previous hash, nonce, the transactions and the chain hash.
+     * A single transaction block has a count of 0 followed by data, a batch block its count and transactions.
+     * @param block
+     * @param chainHash
+     * @return
+     * @throws IOException
+     */
+    static byte[] encode(Block block, Hash256 chainHash) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(block.index);
+        out.writeLong(block.timestamp.getTime());
+        out.writeInt(block.timestamp.getNanos());
+        out.writeInt(block.difficulty);
+        writeHash(out, block.previousHash);
+        byte[] nonce = block.nonce.toByteArray();
+        out.writeShort(nonce.length);
+        out.write(nonce);
+        if(block.transactions == null){
+            out.writeInt(0);
+            writeString(out, block.data);
+        } else {
+            out.writeInt(block.transactions.size());
+            for(String tx : block.transactions){
+                writeString(out, tx);
+            }
+        }
+        writeHash(out, chainHash);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read a block from a record payload, leaving the payload at the chain hash
+     * @param payload
+     * @return
+     */
+    static Block decode(ByteBuffer payload){
+        int index = payload.getInt();
+        Timestamp timestamp = new Timestamp(payload.getLong());
+        timestamp.setNanos(payload.getInt());
+        int difficulty = payload.getInt();
+        Hash256 previousHash = readHash(payload);
+        byte[] nonce = new byte[payload.getShort()];
+        payload.get(nonce);
+
+        Block block;
+        int count = payload.getInt();
+        if(count == 0){
+            block = new Block(index, timestamp, readString(payload), difficulty);
+        } else {
+            List<String> transactions = new ArrayList<>(count);
+            for(int i = 0; i < count; i++){
+                transactions.add(readString(payload));
+            }
+            block = new Block(index, timestamp, transactions, difficulty);
+        }
+        block.previousHash = previousHash;
+        block.nonce = new BigInteger(nonce);
+        return block;
+    }
+
+    private static void writeHash(DataOutputStream out, Hash256 hash) throws IOException {
+        if(hash == Hash256.EMPTY){
+            out.writeByte(0);
+        } else {
+            out.writeByte(1);
+            out.write(hash.toBytes());
+        }
+    }
+
+    private static Hash256 readHash(ByteBuffer in){
+        if(in.get() == 0){
+            return Hash256.EMPTY;
+        }
+        byte[] bytes = new byte[32];
+        in.get(bytes);
+        return Hash256.fromBytes(bytes);
+    }
+
+    //Strings are stored as an int length and UTF-8 bytes, -1 for null
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if(value == null){
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in){
+        int length = in.getInt();
+        if(length < 0){
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
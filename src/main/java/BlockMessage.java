@@ -0,0 +1,40 @@
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Nov 9, 2022
+ *
+ * This is a constructor for blocks being sent from the server in paged responses.
+ * The keys are the ones written by Block.toString(), so Gson can read a block straight from the server output.
+ */
+
+public class BlockMessage {
+    int index;
+    @SerializedName("time stamp ")
+    String timestamp;
+    @SerializedName("Tx ")
+    String data;
+    //Set instead of data for a block holding a batch of transactions
+    @SerializedName("Txs")
+    String[] transactions;
+    //Merkle root of the transactions, set for a batch block
+    @SerializedName("MerkleRoot")
+    String merkleRoot;
+    //Number of transactions of a batch block, only in the header of command 12
+    @SerializedName("TxCount")
+    int transactionCount;
+    @SerializedName("PrevHash")
+    String previousHash;
+    long nonce;
+    int difficulty;
+
+    public BlockMessage(int index, String timestamp, String data, String previousHash, long nonce, int difficulty) {
+        this.index = index;
+        this.timestamp = timestamp;
+        this.data = data;
+        this.previousHash = previousHash;
+        this.nonce = nonce;
+        this.difficulty = difficulty;
+    }
+
+}
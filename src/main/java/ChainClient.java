@@ -0,0 +1,388 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 5, 2022
+ *
+ * This class is a programmatic client for serverTCP and serverNIO.
+ * Any number of requests can be in flight on one connection: every request gets an id, is written right away,
+ * and a reader thread completes the matching CompletableFuture when its answer comes in.
+ * Each command has an asynchronous method returning the future and a blocking one waiting for it.
+ * It can be shared by many threads.
+ *
+ * Answers carry the id of their request. The chain view of command 3 is the only answer without one,
+ * it is matched to the oldest open request since the server answers in request order.
+ * With binary set, the client speaks BinaryProtocol instead of Json lines (serverTCP only).
+ */
+
+public class ChainClient implements Closeable {
+
+    //Gson is thread safe, one instance serves every message
+    static final Gson GSON = new Gson();
+    //The start of an answer with an id, see serverTCP.head()
+    private static final Pattern ANSWER_HEAD = Pattern.compile("\\{\"selection\":-?\\d+,\"id\":(\\d+)");
+
+    private final Socket socket;
+    //Exactly one of the two protocols is set up
+    private final PrintWriter out;
+    private final BufferedReader in;
+    private final BinaryProtocol binary;
+
+    //Ids are given out and requests written under this lock, so requests go out in id order
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private long nextId;
+    //Requests waiting for their answer, and their ids in the order they were sent
+    private final Map<Long, CompletableFuture<ResponseMessage>> pending = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedDeque<Long> order = new ConcurrentLinkedDeque<>();
+    private volatile IOException failure;
+
+    /**
+     * Connect to a server speaking Json lines
+     * @param host
+     * @param port
+     * @throws IOException
+     */
+    public ChainClient(String host, int port) throws IOException {
+        this(host, port, false);
+    }
+
+    /**
+     * Connect to a server
+     * @param host
+     * @param port
+     * @param binary true to negotiate BinaryProtocol
+     * @throws IOException
+     */
+    public ChainClient(String host, int port, boolean binary) throws IOException {
+        this.socket = new Socket(host, port);
+        this.socket.setTcpNoDelay(true);
+        if(binary){
+            this.binary = BinaryProtocol.connect(new BufferedInputStream(this.socket.getInputStream()),
+                    new BufferedOutputStream(this.socket.getOutputStream()));
+            this.out = null;
+            this.in = null;
+        } else {
+            this.binary = null;
+            this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(this.socket.getOutputStream(), StandardCharsets.UTF_8)));
+            this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+        Thread reader = new Thread(this::readAnswers, "chain-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Send a request, the future completes with its answer
+     * @param msg its id is set here
+     * @return
+     */
+    public CompletableFuture<ResponseMessage> send(RequestMessage msg){
+        CompletableFuture<ResponseMessage> answer = new CompletableFuture<>();
+        this.writeLock.lock();
+        try {
+            if(this.failure != null){
+                answer.completeExceptionally(this.failure);
+                return answer;
+            }
+            msg.id = ++this.nextId;
+            //Registered before writing, the answer may come back before write() returns
+            this.pending.put(msg.id, answer);
+            this.order.add(msg.id);
+            if(this.failure != null){
+                //The reader failed the open requests between the check above and now
+                fail(this.failure);
+                return answer;
+            }
+            if(this.binary != null){
+                this.binary.writeRequest(msg);
+            } else {
+                this.out.println(GSON.toJson(msg));
+                this.out.flush();
+                if(this.out.checkError()){
+                    throw new IOException("Connection to the server is broken");
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            this.writeLock.unlock();
+        }
+        return answer;
+    }
+
+    /**
+     * The reader thread: complete the request every answer belongs to, until the connection ends
+     */
+    private void readAnswers(){
+        try {
+            while(true){
+                ResponseMessage answer;
+                String line = null;
+                IOException malformed = null;
+                if(this.binary != null){
+                    answer = this.binary.readResponse();
+                } else {
+                    line = this.in.readLine();
+                    if(line == null){
+                        throw new EOFException("Server closed the connection");
+                    }
+                    try {
+                        answer = line.startsWith("{\"selection\"") ? GSON.fromJson(line, ResponseMessage.class)
+                                : new ResponseMessage(0, 0, null, null, 0, 0, 0, 0, null);
+                        answer.json = line;
+                    } catch (JsonParseException e) {
+                        //Lines stay in step, only the request of this line fails
+                        answer = null;
+                        malformed = new IOException("Malformed answer: " + line, e);
+                    }
+                }
+
+                long answerId = answer != null ? answer.id : idOf(line);
+                Long id = answerId != 0 ? answerId : this.order.peek();
+                if(id == null){
+                    throw new IOException("Answer to no request: " + (answer != null ? answer.json : line));
+                }
+                this.order.remove(id);
+                CompletableFuture<ResponseMessage> request = this.pending.remove(id);
+                if(request != null){
+                    if(malformed != null){
+                        request.completeExceptionally(malformed);
+                    } else {
+                        request.complete(answer);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    /**
+     * The id of an answer Gson could not read, taken from its start which the server always writes the same way
+     * @param line
+     * @return the id, 0 if there is none
+     */
+    static long idOf(String line){
+        Matcher head = ANSWER_HEAD.matcher(line);
+        return head.lookingAt() ? Long.parseLong(head.group(1)) : 0;
+    }
+
+    /**
+     * Fail every open request, and every later one, with e
+     * @param e
+     */
+    private void fail(IOException e){
+        if(this.failure == null){
+            this.failure = e;
+        }
+        for(Long id : this.pending.keySet()){
+            CompletableFuture<ResponseMessage> request = this.pending.remove(id);
+            if(request != null){
+                request.completeExceptionally(this.failure);
+            }
+        }
+        this.order.clear();
+    }
+
+    /**
+     * Close the connection, open requests fail
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        this.socket.close();
+        fail(new IOException("Client closed"));
+    }
+
+    /**
+     * Wait for an answer, unwrapping the failure of the request
+     * @param answer
+     * @return
+     * @param <T>
+     * @throws IOException
+     */
+    private static <T> T await(CompletableFuture<T> answer) throws IOException {
+        try {
+            return answer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the server");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    //Command 0
+    public CompletableFuture<ResponseMessage> statusAsync(){
+        return send(new RequestMessage(0, 0, "", 0));
+    }
+
+    public ResponseMessage status() throws IOException {
+        return await(statusAsync());
+    }
+
+    //Command 1
+    public CompletableFuture<ResponseMessage> addBlockAsync(int difficulty, String data){
+        return send(new RequestMessage(1, difficulty, data, 0));
+    }
+
+    public ResponseMessage addBlock(int difficulty, String data) throws IOException {
+        return await(addBlockAsync(difficulty, data));
+    }
+
+    //Command 1, mining stops after timeLimitMillis or hashBudget hashes, 0 for no limit
+    public CompletableFuture<ResponseMessage> addBlockAsync(int difficulty, String data, long timeLimitMillis, long hashBudget){
+        RequestMessage msg = new RequestMessage(1, difficulty, data, 0);
+        msg.timeout = timeLimitMillis;
+        msg.hashBudget = hashBudget;
+        return send(msg);
+    }
+
+    public ResponseMessage addBlock(int difficulty, String data, long timeLimitMillis, long hashBudget) throws IOException {
+        return await(addBlockAsync(difficulty, data, timeLimitMillis, hashBudget));
+    }
+
+    //Command 2
+    public CompletableFuture<ResponseMessage> verifyAsync(){
+        return send(new RequestMessage(2, 0, "", 0));
+    }
+
+    public ResponseMessage verify() throws IOException {
+        return await(verifyAsync());
+    }
+
+    //Command 3, the Json of the whole chain
+    public CompletableFuture<String> viewChainAsync(){
+        return send(new RequestMessage(3, 0, "", 0)).thenApply(answer -> answer.json);
+    }
+
+    public String viewChain() throws IOException {
+        return await(viewChainAsync());
+    }
+
+    //Command 4
+    public CompletableFuture<ResponseMessage> corruptAsync(int blockIndex, String data){
+        return send(new RequestMessage(4, 0, data, blockIndex));
+    }
+
+    public ResponseMessage corrupt(int blockIndex, String data) throws IOException {
+        return await(corruptAsync(blockIndex, data));
+    }
+
+    //Command 5
+    public CompletableFuture<ResponseMessage> repairAsync(){
+        return send(new RequestMessage(5, 0, "", 0));
+    }
+
+    public ResponseMessage repair() throws IOException {
+        return await(repairAsync());
+    }
+
+    //Command 7
+    public CompletableFuture<ResponseMessage> blockAsync(int blockIndex){
+        return send(new RequestMessage(7, blockIndex, 0, 0));
+    }
+
+    public ResponseMessage block(int blockIndex) throws IOException {
+        return await(blockAsync(blockIndex));
+    }
+
+    //Command 8, the blocks in [from, to)
+    public CompletableFuture<ResponseMessage> blocksAsync(int from, int to){
+        return send(new RequestMessage(8, from, to, 0));
+    }
+
+    public ResponseMessage blocks(int from, int to) throws IOException {
+        return await(blocksAsync(from, to));
+    }
+
+    //Command 9
+    public CompletableFuture<ResponseMessage> tailAsync(int count){
+        return send(new RequestMessage(9, 0, 0, count));
+    }
+
+    public ResponseMessage tail(int count) throws IOException {
+        return await(tailAsync(count));
+    }
+
+    //Command 10
+    public CompletableFuture<ResponseMessage> submitAsync(int difficulty, String data){
+        return send(new RequestMessage(10, difficulty, data, 0));
+    }
+
+    public ResponseMessage submit(int difficulty, String data) throws IOException {
+        return await(submitAsync(difficulty, data));
+    }
+
+    //Command 11, waiting up to timeout milliseconds on the server
+    public CompletableFuture<ResponseMessage> pollAsync(long ticket, long timeout){
+        return send(new RequestMessage(11, ticket, timeout));
+    }
+
+    public ResponseMessage poll(long ticket, long timeout) throws IOException {
+        return await(pollAsync(ticket, timeout));
+    }
+
+    //Command 12
+    public CompletableFuture<ResponseMessage> proofAsync(int blockIndex, int position){
+        return send(new RequestMessage(12, blockIndex, position));
+    }
+
+    public ResponseMessage proof(int blockIndex, int position) throws IOException {
+        return await(proofAsync(blockIndex, position));
+    }
+
+    //Command 13, the Json of the server metrics
+    public CompletableFuture<String> metricsAsync(){
+        return send(new RequestMessage(13, 0, "", 0)).thenApply(answer -> answer.json);
+    }
+
+    public String metrics() throws IOException {
+        return await(metricsAsync());
+    }
+
+    //Command 14, the Json of the mining progress. Answers come in order, so ask from another connection than the miner's
+    public CompletableFuture<String> progressAsync(){
+        return send(new RequestMessage(14, 0, "", 0)).thenApply(answer -> answer.json);
+    }
+
+    public String progress() throws IOException {
+        return await(progressAsync());
+    }
+
+    //Command 15
+    public CompletableFuture<ResponseMessage> cancelMiningAsync(){
+        return send(new RequestMessage(15, 0, "", 0));
+    }
+
+    public ResponseMessage cancelMining() throws IOException {
+        return await(cancelMiningAsync());
+    }
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 16, 2022
+ *
+ * This interface is where a BlockChain keeps its blocks.
+ * ListChainStore keeps every Block as an object, ColumnChainStore keeps the fields of all blocks in primitive arrays
+ * and hands out a Block made for the caller on every get().
+ * So a block taken out of a store and changed has to be put back with set() for the change to stay,
+ * which BlockChain does for every change it makes. set() tells the chain about the change, so that its totals
+ * and what it has verified stay right whichever store it uses.
+ *
+ * The hot loops of verification read single fields through previousHash(), difficulty() and hash(),
+ * without building a Block. hash() memoizes the header hash of every block until set() changes the block.
+ *
+ * A store is guarded by the locks of its chain: readers may call it at the same time, including hash(),
+ * and every change is made alone.
+ */
+
+public interface ChainStore {
+
+    /**
+     * @return number of blocks
+     */
+    int size();
+
+    default boolean isEmpty(){
+        return size() == 0;
+    }
+
+    /**
+     * @param index
+     * @return the block at index, owned by the chain of this store if the store keeps it as it is
+     */
+    Block get(int index);
+
+    /**
+     * Append a block, it gets index size()
+     * @param block
+     */
+    void add(Block block);
+
+    /**
+     * Store block as the block at index, after it was changed, and tell the owner
+     * @param index
+     * @param block
+     */
+    void set(int index, Block block);
+
+    /**
+     * @param index
+     * @return calculateHash() of the block at index
+     */
+    Hash256 hash(int index);
+
+    /**
+     * @param index
+     * @return the previous hash of the block at index
+     */
+    Hash256 previousHash(int index);
+
+    /**
+     * @param index
+     * @return the difficulty of the block at index
+     */
+    int difficulty(int index);
+
+    /**
+     * Make owner the chain of every block in this store, those in it and those added later
+     * @param owner
+     */
+    void setOwner(BlockChain owner);
+
+    /**
+     * An empty store of the same kind for the blocks of a chain from index base on, whose earlier blocks
+     * are kept elsewhere, see LogChainStore. Its methods take the position of a block in it, the index minus base.
+     * @param base
+     * @return
+     */
+    ChainStore startingAt(int base);
+
+}
@@ -0,0 +1,130 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Nov 24, 2022
+ *
+ * This class is a snapshot of a verified chain, kept next to its BlockLog as checkpoint.snap.
+ * It records how many blocks had been verified, the hash of the last of them (the trusted checkpoint hash),
+ * the running totals over those blocks, how many log records they took, where in the log those records end
+ * and where the latest record of the last block starts.
+ *
+ * On startup the blocks covered by the snapshot do not have to be verified again, as long as
+ * the last covered block still hashes to the checkpoint hash and no later log record changed a covered block.
+ * Only the blocks appended after the checkpoint are hashed, however long the chain is,
+ * and BlockLog only replays the records after its end.
+ *
+ * The file is [magic][length][checkpoint hash][total difficulty][total expected hashes][records][end][last][CRC32],
+ * written to a temporary file, forced to disk and moved over the old one, so a crash leaves either snapshot whole.
+ */
+
+public class Checkpoint {
+
+    static final String FILE_NAME = "checkpoint.snap";
+    private static final int MAGIC = 0x43484B32;
+
+    final int length;
+    final Hash256 hash;
+    final int totalDifficulty;
+    final BigInteger totalExpectedHashes;
+    final int records;
+    //Log positions as segment << 32 | offset, see BlockLog
+    final long end;
+    final long last;
+
+    public Checkpoint(int length, Hash256 hash, int totalDifficulty, BigInteger totalExpectedHashes, int records,
+                      long end, long last) {
+        this.length = length;
+        this.hash = hash;
+        this.totalDifficulty = totalDifficulty;
+        this.totalExpectedHashes = totalExpectedHashes;
+        this.records = records;
+        this.end = end;
+        this.last = last;
+    }
+
+    /**
+     * Write this snapshot to dir, replacing the previous one
+     * @param dir
+     * @throws IOException
+     */
+    public void write(Path dir) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(this.length);
+        out.write(this.hash.toBytes());
+        out.writeInt(this.totalDifficulty);
+        byte[] expected = this.totalExpectedHashes.toByteArray();
+        out.writeShort(expected.length);
+        out.write(expected);
+        out.writeInt(this.records);
+        out.writeLong(this.end);
+        out.writeLong(this.last);
+        out.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+
+        //The snapshot must be on disk before the move makes it the current one
+        Path temp = dir.resolve(FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer content = ByteBuffer.wrap(bytes.toByteArray());
+            while(content.hasRemaining()){
+                channel.write(content);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, dir.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the snapshot in dir
+     * @param dir
+     * @return the snapshot, null if there is none or it does not pass its checksum
+     * @throws IOException
+     */
+    public static Checkpoint read(Path dir) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(dir.resolve(FILE_NAME));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if(bytes.length < 4){
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if((int) crc.getValue() != in.getInt(bytes.length - 4) || in.getInt() != MAGIC){
+            System.out.println("Ignoring damaged " + FILE_NAME + " in " + dir);
+            return null;
+        }
+
+        int length = in.getInt();
+        Hash256 hash = Hash256.fromBytes(bytes, in.position());
+        in.position(in.position() + 32);
+        int totalDifficulty = in.getInt();
+        byte[] expected = new byte[in.getShort()];
+        in.get(expected);
+        int records = in.getInt();
+        long end = in.getLong();
+        long last = in.getLong();
+        return new Checkpoint(length, hash, totalDifficulty, new BigInteger(expected), records, end, last);
+    }
+
+}
@@ -0,0 +1,379 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 16, 2022
+ *
+ * This class keeps the blocks of a chain as columns of primitive arrays instead of one object graph per block,
+ * for chains of millions of blocks. A block takes about 100 bytes here plus its transactions,
+ * where a Block with its Timestamp, BigInteger, Strings and hashes takes several hundred.
+ * - timestamps as epoch milliseconds, nonces as longs, difficulties as ints
+ * - previous hashes and memoized header hashes as 32 bytes each, a bit per block telling whether the hash is known
+ * - the transactions in one shared byte arena: the UTF-8 data of a single transaction block,
+ *   [int count]([int length][UTF-8 bytes])* for a batch block
+ * The rare values that do not fit a column are kept by the position of their block: timestamps with a fraction of a millisecond,
+ * nonces that are not a non-negative long, and the Merkle roots of batch blocks.
+ *
+ * get() builds a Block from the columns for its caller. It belongs to no chain: changing it changes neither the store
+ * nor the totals of the chain, until it is stored again through set(), which tells the chain what changed.
+ * hash() does not build a Block, it hashes the header fields straight from the columns.
+ * A changed payload is appended to the arena, the bytes it replaces stay unused there.
+ * Columns hold at most MAX_BLOCKS blocks and the arena at most MAX_ARENA_BYTES.
+ */
+
+public class ColumnChainStore implements ChainStore {
+
+    static final int INITIAL_BLOCKS = 1024;
+    static final int INITIAL_ARENA_BYTES = 64 * 1024;
+    //The hash columns are byte arrays of 32 bytes per block
+    static final int MAX_BLOCKS = (Integer.MAX_VALUE - 8) / 32;
+    static final int MAX_ARENA_BYTES = Integer.MAX_VALUE - 8;
+    //Nonce column value of a nonce kept in bigNonces
+    private static final long BIG_NONCE = -1;
+    //Payload length of a block whose data is null, other negative lengths are batches
+    private static final int NULL_PAYLOAD = Integer.MIN_VALUE;
+    //Sets and reads the known bits, so a hash memoized by one reader is seen whole by the others
+    private static final VarHandle KNOWN = MethodHandles.arrayElementVarHandle(long[].class);
+    //Data of a block whose data is null, as Block.headerData() writes it
+    private static final byte[] NULL_DATA = "null".getBytes();
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    //Formats the timestamps of the hashed headers, one per thread
+    private static final ThreadLocal<Timestamp> TIME = ThreadLocal.withInitial(() -> new Timestamp(0));
+
+    private int size;
+    private long[] millis = new long[INITIAL_BLOCKS];
+    private long[] nonces = new long[INITIAL_BLOCKS];
+    private int[] difficulties = new int[INITIAL_BLOCKS];
+    //All zero for the empty previous hash of the genesis block
+    private byte[] previousHashes = new byte[32 * INITIAL_BLOCKS];
+    private byte[] hashes = new byte[32 * INITIAL_BLOCKS];
+    private long[] known = new long[INITIAL_BLOCKS / 64];
+    private int[] payloadStart = new int[INITIAL_BLOCKS];
+    //Negative for a batch block, NULL_PAYLOAD for null data
+    private int[] payloadLength = new int[INITIAL_BLOCKS];
+    private byte[] arena = new byte[INITIAL_ARENA_BYTES];
+    private int arenaUsed;
+
+    private final Map<Integer, Timestamp> preciseTimes = new HashMap<>();
+    private final Map<Integer, BigInteger> bigNonces = new HashMap<>();
+    private final Map<Integer, String> merkleRoots = new HashMap<>();
+    //Index of the first block, see startingAt()
+    private final int base;
+    private BlockChain owner;
+
+    public ColumnChainStore() {
+        this(0);
+    }
+
+    ColumnChainStore(int base) {
+        this.base = base;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public Block get(int index) {
+        Objects.checkIndex(index, this.size);
+        Timestamp timestamp = this.preciseTimes.isEmpty() ? null : this.preciseTimes.get(index);
+        //Timestamps can be changed, every block gets its own
+        timestamp = timestamp == null ? new Timestamp(this.millis[index]) : (Timestamp) timestamp.clone();
+
+        Block block;
+        int start = this.payloadStart[index];
+        int length = this.payloadLength[index];
+        if(length == NULL_PAYLOAD){
+            block = new Block(this.base + index, timestamp, (String) null, this.difficulties[index]);
+        } else if(length >= 0){
+            block = new Block(this.base + index, timestamp, new String(this.arena, start, length, StandardCharsets.UTF_8),
+                    this.difficulties[index]);
+        } else {
+            //The Merkle root is kept, so the tree is not built again
+            List<String> transactions = decodeBatch(start, -length);
+            block = new Block(this.base + index, timestamp, Block.encodeTransactions(transactions), this.difficulties[index]);
+            block.transactions = transactions;
+            block.merkleRoot = this.merkleRoots.get(index);
+        }
+        block.previousHash = previousHash(index);
+        long nonce = this.nonces[index];
+        block.nonce = nonce == BIG_NONCE ? this.bigNonces.get(index) : BigInteger.valueOf(nonce);
+        if(isKnown(index)){
+            block.hash = Hash256.fromBytes(this.hashes, 32 * index);
+        }
+        return block;
+    }
+
+    @Override
+    public void add(Block block) {
+        if(this.size == this.millis.length){
+            grow();
+        }
+        put(this.size, block, false);
+        this.size++;
+    }
+
+    @Override
+    public void set(int index, Block block) {
+        Objects.checkIndex(index, this.size);
+        int oldDifficulty = this.difficulties[index];
+        put(index, block, true);
+        //The block was changed away from its chain
+        if(this.owner != null){
+            this.owner.blockChanged(this.base + index);
+            if(block.difficulty != oldDifficulty){
+                this.owner.difficultyChanged(oldDifficulty, block.difficulty);
+            }
+        }
+    }
+
+    @Override
+    public Hash256 hash(int index) {
+        Objects.checkIndex(index, this.size);
+        if(isKnown(index)){
+            return Hash256.fromBytes(this.hashes, 32 * index);
+        }
+        long nonce = this.nonces[index];
+        byte[] nonceBytes = (nonce == BIG_NONCE ? String.valueOf(this.bigNonces.get(index)) : Long.toString(nonce)).getBytes();
+        HeaderHasher.Scratch scratch = HeaderHasher.scratch();
+        header(index).hash(nonceBytes, 0, nonceBytes.length, scratch);
+        Hash256 hash = Hash256.fromBytes(scratch.hash);
+        //Readers hashing the same block at the same time write the same bytes
+        hash.writeBytes(this.hashes, 32 * index);
+        KNOWN.getAndBitwiseOrRelease(this.known, index >>> 6, 1L << index);
+        return hash;
+    }
+
+    @Override
+    public Hash256 previousHash(int index) {
+        Objects.checkIndex(index, this.size);
+        int at = 32 * index;
+        for(int i = at; i < at + 32; i++){
+            if(this.previousHashes[i] != 0){
+                return Hash256.fromBytes(this.previousHashes, at);
+            }
+        }
+        //The empty hash only equals itself
+        return Hash256.EMPTY;
+    }
+
+    @Override
+    public int difficulty(int index) {
+        Objects.checkIndex(index, this.size);
+        return this.difficulties[index];
+    }
+
+    @Override
+    public void setOwner(BlockChain owner) {
+        this.owner = owner;
+    }
+
+    @Override
+    public ChainStore startingAt(int base) {
+        return new ColumnChainStore(base);
+    }
+
+    /**
+     * Simple getter method
+     * @return bytes of the arena in use, replaced payloads included
+     */
+    public int getArenaBytes() {
+        return this.arenaUsed;
+    }
+
+    /**
+     * The fixed header fields of the block at index, encoded like Block.calculateHash() does
+     * @param index
+     * @return
+     */
+    private HeaderHasher header(int index){
+        Timestamp timestamp = this.preciseTimes.isEmpty() ? null : this.preciseTimes.get(index);
+        if(timestamp == null){
+            timestamp = TIME.get();
+            timestamp.setTime(this.millis[index]);
+        }
+
+        byte[] data;
+        int offset = 0;
+        int length = this.payloadLength[index];
+        boolean batch = length < 0 && length != NULL_PAYLOAD;
+        if(length == NULL_PAYLOAD){
+            data = NULL_DATA;
+            length = data.length;
+        } else if(length >= 0){
+            //Stored as UTF-8, the default charset the header is encoded with
+            data = this.arena;
+            offset = this.payloadStart[index];
+        } else {
+            data = String.valueOf(this.merkleRoots.get(index)).getBytes();
+            length = data.length;
+        }
+
+        //The previous hash as Hash256.toString() writes it, "" for the empty hash
+        String previousHash = "";
+        int at = 32 * index;
+        for(int i = at; i < at + 32; i++){
+            if(this.previousHashes[i] != 0){
+                char[] hex = new char[32];
+                for(int j = 0; j < 32; j++){
+                    hex[j] = HEX[(this.previousHashes[at + j] >> 4) & 0xF];
+                }
+                previousHash = new String(hex);
+                break;
+            }
+        }
+        return new HeaderHasher(this.base + index, timestamp.toString(), batch, data, offset, length, previousHash, this.difficulties[index]);
+    }
+
+    private boolean isKnown(int index){
+        return ((long) KNOWN.getAcquire(this.known, index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * Write the fields of block to the columns at index
+     * @param index
+     * @param block
+     * @param replace whether index holds a block, whose payload is kept if it did not change
+     */
+    private void put(int index, Block block, boolean replace){
+        Timestamp timestamp = block.timestamp;
+        this.millis[index] = timestamp.getTime();
+        if(timestamp.getNanos() % 1_000_000 != 0){
+            this.preciseTimes.put(index, (Timestamp) timestamp.clone());
+        } else if(!this.preciseTimes.isEmpty()){
+            this.preciseTimes.remove(index);
+        }
+
+        BigInteger nonce = block.nonce;
+        if(nonce != null && nonce.signum() >= 0 && nonce.bitLength() < 64){
+            this.nonces[index] = nonce.longValue();
+            if(!this.bigNonces.isEmpty()){
+                this.bigNonces.remove(index);
+            }
+        } else {
+            this.nonces[index] = BIG_NONCE;
+            this.bigNonces.put(index, nonce);
+        }
+
+        this.difficulties[index] = block.difficulty;
+        if(block.previousHash == null || block.previousHash == Hash256.EMPTY){
+            Arrays.fill(this.previousHashes, 32 * index, 32 * index + 32, (byte) 0);
+        } else {
+            block.previousHash.writeBytes(this.previousHashes, 32 * index);
+        }
+
+        byte[] payload;
+        int length;
+        if(block.transactions != null){
+            payload = encodeBatch(block.transactions);
+            length = -payload.length;
+            this.merkleRoots.put(index, block.merkleRoot);
+        } else {
+            payload = block.data == null ? null : block.data.getBytes(StandardCharsets.UTF_8);
+            length = payload == null ? NULL_PAYLOAD : payload.length;
+            if(!this.merkleRoots.isEmpty()){
+                this.merkleRoots.remove(index);
+            }
+        }
+        //A repaired block keeps its transactions, only its header changed
+        if(!replace || !samePayload(index, payload, length)){
+            this.payloadStart[index] = append(payload);
+            this.payloadLength[index] = length;
+        }
+
+        if(block.hash != null){
+            block.hash.writeBytes(this.hashes, 32 * index);
+            KNOWN.getAndBitwiseOrRelease(this.known, index >>> 6, 1L << index);
+        } else {
+            KNOWN.getAndBitwiseAndRelease(this.known, index >>> 6, ~(1L << index));
+        }
+    }
+
+    private boolean samePayload(int index, byte[] payload, int length){
+        if(this.payloadLength[index] != length){
+            return false;
+        }
+        if(payload == null){
+            return true;
+        }
+        int start = this.payloadStart[index];
+        return Arrays.equals(this.arena, start, start + payload.length, payload, 0, payload.length);
+    }
+
+    /**
+     * @param payload
+     * @return where payload starts in the arena, 0 for null
+     */
+    private int append(byte[] payload){
+        if(payload == null){
+            return 0;
+        }
+        if(payload.length > this.arena.length - this.arenaUsed){
+            if(payload.length > MAX_ARENA_BYTES - this.arenaUsed){
+                throw new IllegalStateException("Transaction arena full at " + this.arenaUsed + " bytes");
+            }
+            long wanted = Math.max(2L * this.arena.length, (long) this.arenaUsed + payload.length);
+            this.arena = Arrays.copyOf(this.arena, (int) Math.min(wanted, MAX_ARENA_BYTES));
+        }
+        int start = this.arenaUsed;
+        System.arraycopy(payload, 0, this.arena, start, payload.length);
+        this.arenaUsed += payload.length;
+        return start;
+    }
+
+    private void grow(){
+        if(this.size == MAX_BLOCKS){
+            throw new IllegalStateException("Chain store full at " + MAX_BLOCKS + " blocks");
+        }
+        int capacity = (int) Math.min(2L * this.size, MAX_BLOCKS);
+        this.millis = Arrays.copyOf(this.millis, capacity);
+        this.nonces = Arrays.copyOf(this.nonces, capacity);
+        this.difficulties = Arrays.copyOf(this.difficulties, capacity);
+        this.previousHashes = Arrays.copyOf(this.previousHashes, 32 * capacity);
+        this.hashes = Arrays.copyOf(this.hashes, 32 * capacity);
+        this.known = Arrays.copyOf(this.known, (capacity + 63) / 64);
+        this.payloadStart = Arrays.copyOf(this.payloadStart, capacity);
+        this.payloadLength = Arrays.copyOf(this.payloadLength, capacity);
+    }
+
+    private static byte[] encodeBatch(List<String> transactions){
+        byte[][] encoded = new byte[transactions.size()][];
+        int length = 4;
+        for(int i = 0; i < encoded.length; i++){
+            encoded[i] = transactions.get(i).getBytes(StandardCharsets.UTF_8);
+            length += 4 + encoded[i].length;
+        }
+        ByteBuffer batch = ByteBuffer.allocate(length);
+        batch.putInt(encoded.length);
+        for(byte[] transaction : encoded){
+            batch.putInt(transaction.length);
+            batch.put(transaction);
+        }
+        return batch.array();
+    }
+
+    private List<String> decodeBatch(int start, int length){
+        ByteBuffer batch = ByteBuffer.wrap(this.arena, start, length);
+        int count = batch.getInt();
+        List<String> transactions = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            int bytes = batch.getInt();
+            transactions.add(new String(this.arena, batch.position(), bytes, StandardCharsets.UTF_8));
+            batch.position(batch.position() + bytes);
+        }
+        return List.copyOf(transactions);
+    }
+
+}
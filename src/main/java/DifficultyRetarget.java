@@ -0,0 +1,102 @@
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 15, 2022
+ *
+ * This class picks the difficulty of new blocks so that mining one takes about targetMillis,
+ * whatever difficulty the clients ask for. It only covers the time spent mining,
+ * the time between two blocks also depends on how often clients add them.
+ *
+ * The chain reports the last WINDOW proofs of work: the work they did and the time they took.
+ * A block that was found counts as the 16^difficulty hashes expected for it, like a block of a real chain;
+ * a proof of work stopped by its MiningJob counts the hashes it tried, so a difficulty too high to ever finish
+ * still brings the rate down. The next difficulty is the one whose expected time at that rate is closest
+ * to targetMillis, at most one step away from the difficulty of the latest block since the window still remembers it,
+ * and within [MIN_DIFFICULTY, MAX_DIFFICULTY].
+ * Until a proof of work is reported the latest difficulty is kept.
+ */
+
+public class DifficultyRetarget {
+
+    static final int DEFAULT_WINDOW = 16;
+    static final int MIN_DIFFICULTY = 1;
+    static final int MAX_DIFFICULTY = 16;
+
+    final long targetMillis;
+    //Work in hashes and time in nanoseconds of the last proofs of work, as a ring
+    private final double[] work;
+    private final long[] nanos;
+    private int next;
+    private int samples;
+
+    /**
+     * @param targetMillis mining time aimed at per block
+     * @param window number of proofs of work the rate is taken from
+     */
+    public DifficultyRetarget(long targetMillis, int window) {
+        if(targetMillis <= 0 || window <= 0){
+            throw new IllegalArgumentException("Target and window must be positive");
+        }
+        this.targetMillis = targetMillis;
+        this.work = new double[window];
+        this.nanos = new long[window];
+    }
+
+    /**
+     * Count a block found at difficulty
+     * @param difficulty
+     * @param nanos time its proof of work took
+     */
+    public synchronized void recordBlock(int difficulty, long nanos){
+        record(Math.scalb(1.0, 4 * difficulty), nanos);
+    }
+
+    /**
+     * Count a proof of work that stopped before it found a nonce
+     * @param hashes the hashes it tried
+     * @param nanos time it ran
+     */
+    public synchronized void recordStopped(long hashes, long nanos){
+        record(hashes, nanos);
+    }
+
+    private void record(double hashes, long nanos){
+        this.work[this.next] = hashes;
+        this.nanos[this.next] = Math.max(0, nanos);
+        this.next = (this.next + 1) % this.work.length;
+        this.samples = Math.min(this.samples + 1, this.work.length);
+    }
+
+    /**
+     * @param latest difficulty of the latest block
+     * @return difficulty of the next block
+     */
+    public synchronized int nextDifficulty(int latest){
+        int current = clamp(latest);
+        double hashes = 0;
+        long time = 0;
+        for(int i = 0; i < this.samples; i++){
+            hashes += this.work[i];
+            time += this.nanos[i];
+        }
+        if(hashes == 0 || time == 0){
+            return current;
+        }
+        //Hashes expected in targetMillis at the rate of the window, as a power of 16
+        double exponent = Math.log(hashes / time * this.targetMillis * 1e6) / Math.log(16);
+        int wanted = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.round(exponent)));
+        return clamp(Math.max(current - 1, Math.min(current + 1, wanted)));
+    }
+
+    private static int clamp(int difficulty){
+        return Math.max(MIN_DIFFICULTY, Math.min(MAX_DIFFICULTY, difficulty));
+    }
+
+    /**
+     * Simple getter method
+     * @return
+     */
+    public long getTargetMillis(){
+        return this.targetMillis;
+    }
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Author: Changzhou Zheng
+ * Date: Nov 4, 2022
+ *
+ * This class is an immutable SHA-256 hash value.
+ * The 32 digest bytes are kept in four longs (big-endian), so a hash costs no String or array on the heap,
+ * equality is four long comparisons and the proof of work check is done by counting bits.
+ * A hex String is only produced by toString(), i.e. when a hash is printed or put into a Json message.
+ * Its format is the one of Block.SHA2Str(): one uppercase hex digit per digest byte, the upper nibble.
+ *
+ * EMPTY stands for "no hash", which is the previous hash of the genesis block and the chain hash of an empty chain.
+ * It prints as "" and is only equal to itself.
+ */
+
+public final class Hash256 {
+
+    public static final Hash256 EMPTY = new Hash256(0, 0, 0, 0);
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    //Keeps the upper nibble of every byte of a word, i.e. the bits that show up in the hex String
+    private static final long UPPER_NIBBLES = 0xF0F0F0F0F0F0F0F0L;
+
+    private final long w0;
+    private final long w1;
+    private final long w2;
+    private final long w3;
+
+    private Hash256(long w0, long w1, long w2, long w3){
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    /**
+     * Build a hash from 32 digest bytes starting at offset
+     * @param bytes
+     * @param offset
+     * @return
+     */
+    public static Hash256 fromBytes(byte[] bytes, int offset){
+        return new Hash256(readLong(bytes, offset), readLong(bytes, offset + 8),
+                readLong(bytes, offset + 16), readLong(bytes, offset + 24));
+    }
+
+    /**
+     * Build a hash from a 32 byte digest
+     * @param bytes
+     * @return
+     */
+    public static Hash256 fromBytes(byte[] bytes){
+        return fromBytes(bytes, 0);
+    }
+
+    private static long readLong(byte[] bytes, int offset){
+        long value = 0;
+        for(int i = 0; i < 8; i++){
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private long word(int w){
+        switch(w){
+            case 0: return this.w0;
+            case 1: return this.w1;
+            case 2: return this.w2;
+            default: return this.w3;
+        }
+    }
+
+    /**
+     * Copy the 32 digest bytes into dest starting at offset
+     * @param dest
+     * @param offset
+     */
+    public void writeBytes(byte[] dest, int offset){
+        for(int w = 0; w < 4; w++){
+            long word = word(w);
+            for(int i = 0; i < 8; i++){
+                dest[offset + 8 * w + i] = (byte) (word >>> (56 - 8 * i));
+            }
+        }
+    }
+
+    /**
+     * Simple getter method
+     * @return a new array with the 32 digest bytes
+     */
+    public byte[] toBytes(){
+        byte[] bytes = new byte[32];
+        writeBytes(bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Count the leading zero hex digits of the hash String without building it.
+     * Masking a word with UPPER_NIBBLES leaves exactly the bits printed as hex,
+     * so the number of leading zero digits inside a word is its number of leading zero bits divided by 8.
+     * @return the number of leading hex zeroes, 0 to 32
+     */
+    public int leadingZeroDigits(){
+        if(this == EMPTY){
+            return 0;
+        }
+        int zeros = zeroDigits(this.w0);
+        if(zeros == 8){
+            zeros += zeroDigits(this.w1);
+        }
+        if(zeros == 16){
+            zeros += zeroDigits(this.w2);
+        }
+        if(zeros == 24){
+            zeros += zeroDigits(this.w3);
+        }
+        return zeros;
+    }
+
+    private static int zeroDigits(long word){
+        long visible = word & UPPER_NIBBLES;
+        return visible == 0 ? 8 : Long.numberOfLeadingZeros(visible) / 8;
+    }
+
+    /**
+     * Proof of work check
+     * @param difficulty
+     * @return true if the hash begins with at least difficulty hex zeroes
+     */
+    public boolean hasLeadingZeros(int difficulty){
+        return leadingZeroDigits() >= difficulty;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(this == o){
+            return true;
+        }
+        if(!(o instanceof Hash256) || this == EMPTY || o == EMPTY){
+            return false;
+        }
+        Hash256 other = (Hash256) o;
+        return this.w0 == other.w0 && this.w1 == other.w1 && this.w2 == other.w2 && this.w3 == other.w3;
+    }
+
+    @Override
+    public int hashCode(){
+        return Long.hashCode(this.w0);
+    }
+
+    /**
+     * The hash in the Block.SHA2Str() format, "" for EMPTY
+     * @return
+     */
+    @Override
+    public String toString(){
+        if(this == EMPTY){
+            return "";
+        }
+        char[] out = new char[32];
+        for(int w = 0; w < 4; w++){
+            long word = word(w);
+            for(int i = 0; i < 8; i++){
+                out[8 * w + i] = HEX[(int) (word >>> (60 - 8 * i)) & 0x0F];
+            }
+        }
+        return new String(out);
+    }
+
+}
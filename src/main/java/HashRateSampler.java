@@ -0,0 +1,76 @@
+import java.sql.Timestamp;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 1, 2022
+ *
+ * This class measures how many hashes per second one mining thread computes, from the mining work itself.
+ * Mining threads report every REPORT_EVERY attempts how many hashes they computed and for how long,
+ * and each report folds into an exponential moving average of hashes per second per thread.
+ * The weight of a report grows with the thread time it covers, so a report of x thread-seconds
+ * moves the average by 1 - e^(-x / TIME_CONSTANT_SECONDS) of the way towards its own rate.
+ *
+ * Before any block is mined the average comes from calibrate(), a short benchmark meant to run once at startup.
+ * Reading the rate is a single volatile read, so status requests never hash anything.
+ */
+
+public class HashRateSampler {
+
+    //Attempts between two reports of a mining thread, a power of 2
+    static final int REPORT_EVERY = 1 << 14;
+    static final double TIME_CONSTANT_SECONDS = 10;
+    static final long CALIBRATION_MILLIS = 250;
+
+    private volatile double hashesPerSecond;
+
+    /**
+     * Fold the work of one mining thread into the average
+     * @param hashes hashes computed since the thread's last report
+     * @param nanos time they took
+     */
+    public void report(long hashes, long nanos){
+        if(hashes <= 0 || nanos <= 0){
+            return;
+        }
+        double seconds = nanos / 1e9;
+        double sample = hashes / seconds;
+        double weight = 1 - Math.exp(-seconds / TIME_CONSTANT_SECONDS);
+        synchronized (this) {
+            double current = this.hashesPerSecond;
+            this.hashesPerSecond = current == 0 ? sample : current + weight * (sample - current);
+        }
+    }
+
+    /**
+     * Seed the average by mining a dummy block on the calling thread for CALIBRATION_MILLIS,
+     * with the same hashing code as proofOfWork()
+     */
+    public void calibrate(){
+        Block dummy = new Block(0, new Timestamp(0), "00000000", 32);
+        dummy.previousHash = Hash256.EMPTY;
+        HeaderHasher hasher = new HeaderHasher(dummy);
+        HeaderHasher.Scratch scratch = new HeaderHasher.Scratch();
+
+        long start = System.nanoTime();
+        long deadline = start + CALIBRATION_MILLIS * 1_000_000;
+        long nonce = 0;
+        long now;
+        do {
+            for(int i = 0; i < REPORT_EVERY; i++){
+                hasher.tryNonce(nonce++, scratch);
+            }
+            now = System.nanoTime();
+        } while(now < deadline);
+
+        this.hashesPerSecond = nonce / ((now - start) / 1e9);
+    }
+
+    /**
+     * Simple getter method
+     * @return the moving average of hashes per second of one mining thread
+     */
+    public int getHashesPerSecond(){
+        return (int) this.hashesPerSecond;
+    }
+
+}
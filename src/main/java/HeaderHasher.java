@@ -0,0 +1,176 @@
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Nov 2, 2022
+ *
+ * This class is the hashing engine behind proof of work.
+ * A block header is hashed as index + timestamp + data + previousHash + nonce + difficulty,
+ * where a batch block has the byte Block.BATCH_TAG and its Merkle root in place of data, see Block.headerData(),
+ * and only the nonce changes between two attempts.
+ * So the fixed fields are encoded to bytes once per block: everything in front of the nonce goes to the prefix,
+ * the difficulty goes to the suffix. Every attempt then only writes the nonce digits into a scratch buffer
+ * and feeds prefix, digits and suffix into a reused MessageDigest, without creating any Strings or objects.
+ * For a single transaction block the bytes fed to SHA-256 are exactly the bytes of that String,
+ * so the hash is SHA2Str() of it, as it always was.
+ *
+ * Note that Block.SHA2Str() writes one hex digit per digest byte, the upper nibble,
+ * so a hash String is 32 characters long and "leading hex zeroes" means leading bytes below 0x10.
+ */
+
+public class HeaderHasher {
+
+    private final byte[] prefix;
+    private final byte[] suffix;
+    private final int difficulty;
+
+    /**
+     * Encode the fixed header fields of a block
+     * @param block
+     */
+    HeaderHasher(Block block){
+        this(block.index, block.timestamp.toString(), block.merkleRoot != null, Block.headerData(block.data, block.merkleRoot),
+                String.valueOf(block.previousHash), block.difficulty);
+    }
+
+    private HeaderHasher(int index, String timestamp, boolean batch, byte[] data, String previousHash, int difficulty){
+        this(index, timestamp, batch, data, 0, data.length, previousHash, difficulty);
+    }
+
+    /**
+     * Encode the fixed header fields of a block given one by one, e.g. straight from the columns of a ColumnChainStore.
+     * The prefix is the same as the one of the block holding these fields.
+     * @param index
+     * @param timestamp the timestamp as Timestamp.toString() writes it
+     * @param batch whether the block holds a batch
+     * @param data holds Block.headerData(), the encoded data of a single transaction block
+     *             or the Merkle root of a batch, in [offset, offset + length)
+     * @param offset
+     * @param length
+     * @param previousHash the previous hash as Hash256.toString() writes it
+     * @param difficulty
+     */
+    HeaderHasher(int index, String timestamp, boolean batch, byte[] data, int offset, int length, String previousHash, int difficulty){
+        byte[] front = (String.valueOf(index) + timestamp).getBytes();
+        byte[] back = previousHash.getBytes();
+        int tag = batch ? 1 : 0;
+        this.prefix = new byte[front.length + tag + length + back.length];
+        System.arraycopy(front, 0, this.prefix, 0, front.length);
+        if(batch){
+            this.prefix[front.length] = Block.BATCH_TAG;
+        }
+        System.arraycopy(data, offset, this.prefix, front.length + tag, length);
+        System.arraycopy(back, 0, this.prefix, front.length + tag + length, back.length);
+        this.suffix = String.valueOf(difficulty).getBytes();
+        this.difficulty = difficulty;
+    }
+
+    /**
+     * Hash a header given field by field, as a block holding these fields hashes it,
+     * e.g. a header a client got from the server
+     * @param index
+     * @param timestamp
+     * @param data
+     * @param merkleRoot not null for a batch block
+     * @param previousHash
+     * @param nonce
+     * @param difficulty
+     * @return
+     */
+    static Hash256 hash(int index, String timestamp, String data, String merkleRoot, String previousHash, String nonce, int difficulty){
+        byte[] nonceBytes = nonce.getBytes();
+        Scratch scratch = scratch();
+        new HeaderHasher(index, timestamp, merkleRoot != null, Block.headerData(data, merkleRoot), previousHash, difficulty)
+                .hash(nonceBytes, 0, nonceBytes.length, scratch);
+        return Hash256.fromBytes(scratch.hash);
+    }
+
+    //Scratch space for hashes computed outside of mining, e.g. while verifying the chain
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Scratch space of the calling thread
+     * @return
+     */
+    static Scratch scratch(){
+        return SCRATCH.get();
+    }
+
+    /**
+     * Scratch space owned by a single mining thread: its own digest plus buffers for the nonce and the result.
+     * Never share one between threads.
+     */
+    static class Scratch {
+        final MessageDigest digest;
+        final byte[] digits = new byte[20];
+        final byte[] hash = new byte[32];
+
+        Scratch(){
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Hash the header with the given nonce into scratch.hash
+     * @param nonce a non-negative candidate nonce
+     * @param scratch
+     * @return true if the hash has the block's number of leading hex zeroes
+     */
+    boolean tryNonce(long nonce, Scratch scratch){
+        //Write the decimal digits of the nonce from the end of the buffer
+        byte[] digits = scratch.digits;
+        int start = digits.length;
+        do {
+            digits[--start] = (byte) ('0' + (nonce % 10));
+            nonce /= 10;
+        } while(nonce != 0);
+
+        hash(digits, start, digits.length - start, scratch);
+        return hasLeadingZeros(scratch.hash, this.difficulty);
+    }
+
+    /**
+     * Hash the header with an already encoded nonce into scratch.hash
+     * @param nonce
+     * @param offset
+     * @param length
+     * @param scratch
+     */
+    void hash(byte[] nonce, int offset, int length, Scratch scratch){
+        MessageDigest digest = scratch.digest;
+        digest.update(this.prefix);
+        digest.update(nonce, offset, length);
+        digest.update(this.suffix);
+        try {
+            digest.digest(scratch.hash, 0, scratch.hash.length);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Check the leading hex zeroes directly on the bytes.
+     * Hex digit i of a hash String is the upper nibble of byte i (see Block.SHA2Str())
+     * @param hash
+     * @param zeros
+     * @return true if the first "zeros" hex digits of the hash are all 0
+     */
+    static boolean hasLeadingZeros(byte[] hash, int zeros){
+        if(zeros > hash.length){
+            return false;
+        }
+        for(int i = 0; i < zeros; i++){
+            if((hash[i] & 0xF0) != 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,123 @@
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 8, 2022
+ *
+ * This class counts latencies in nanoseconds in log-linear buckets, so percentiles come out of a fixed array.
+ * Values below 2 * SUB_BUCKETS have a bucket each, above that every power of two is cut into SUB_BUCKETS buckets,
+ * so a reported value is at most 1 / SUB_BUCKETS (about 3%) above the real one.
+ * Any other non-negative count can be recorded the same way, Metrics also keeps the hashes attempted per block in one.
+ * It is not thread safe: each load generating thread records into its own histograms and they are merged at the end,
+ * Metrics locks each of its histograms.
+ */
+
+public class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //Enough buckets for any positive long
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long total;
+    private long max;
+
+    /**
+     * Count one latency
+     * @param nanos negative values count as 0
+     */
+    public void record(long nanos){
+        long value = Math.max(0, nanos);
+        this.counts[bucketOf(value)]++;
+        this.count++;
+        this.total += value;
+        this.max = Math.max(this.max, value);
+    }
+
+    /**
+     * Add the counts of another histogram to this one
+     * @param other
+     */
+    public void add(LatencyHistogram other){
+        for(int i = 0; i < BUCKETS; i++){
+            this.counts[i] += other.counts[i];
+        }
+        this.count += other.count;
+        this.total += other.total;
+        this.max = Math.max(this.max, other.max);
+    }
+
+    static int bucketOf(long value){
+        if(value < 2 * SUB_BUCKETS){
+            return (int) value;
+        }
+        //value is in [2^exponent, 2^(exponent+1)), keep its SUB_BUCKET_BITS bits after the leading one
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @param bucket
+     * @return the largest value counted in bucket
+     */
+    static long highestValueOf(int bucket){
+        if(bucket < 2 * SUB_BUCKETS){
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * @param fraction between 0 and 1, 0.99 for p99
+     * @return the latency that fraction of the recorded ones are at or below, 0 if nothing was recorded
+     */
+    public long percentile(double fraction){
+        if(this.count == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * this.count));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += this.counts[i];
+            if(seen >= rank){
+                //The top bucket may be wider than the largest value in it
+                return Math.min(highestValueOf(i), this.max);
+            }
+        }
+        return this.max;
+    }
+
+    /**
+     * Simple getter method
+     * @return
+     */
+    public long getCount(){
+        return this.count;
+    }
+
+    /**
+     * Simple getter method
+     * @return
+     */
+    public long getMax(){
+        return this.max;
+    }
+
+    /**
+     * Simple getter method
+     * @return the sum of the recorded values
+     */
+    public long getTotal(){
+        return this.total;
+    }
+
+    /**
+     * @return the mean latency, 0 if nothing was recorded
+     */
+    public double getMean(){
+        return this.count == 0 ? 0 : (double) this.total / this.count;
+    }
+
+}
@@ -0,0 +1,87 @@
+import java.util.ArrayList;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 16, 2022
+ *
+ * This class keeps the blocks of a chain as Block objects in a list, the way the chain always did.
+ * get() hands out the stored block itself, which tells its chain about every change through its setters.
+ * So set() has nothing left to do but to replace a block by another one, and to tell the chain about that.
+ * Hashes are memoized in the blocks.
+ */
+
+public class ListChainStore implements ChainStore {
+
+    private final ArrayList<Block> blocks = new ArrayList<>();
+    //Index of the first block, see startingAt()
+    private final int base;
+    private BlockChain owner;
+
+    public ListChainStore() {
+        this(0);
+    }
+
+    ListChainStore(int base) {
+        this.base = base;
+    }
+
+    @Override
+    public int size() {
+        return this.blocks.size();
+    }
+
+    @Override
+    public Block get(int index) {
+        return this.blocks.get(index);
+    }
+
+    @Override
+    public void add(Block block) {
+        block.owner = this.owner;
+        this.blocks.add(block);
+    }
+
+    @Override
+    public void set(int index, Block block) {
+        Block old = this.blocks.get(index);
+        if(old != block){
+            block.owner = this.owner;
+            this.blocks.set(index, block);
+            if(this.owner != null){
+                this.owner.blockChanged(this.base + index);
+                if(block.difficulty != old.difficulty){
+                    this.owner.difficultyChanged(old.difficulty, block.difficulty);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Hash256 hash(int index) {
+        return this.blocks.get(index).calculateHash();
+    }
+
+    @Override
+    public Hash256 previousHash(int index) {
+        return this.blocks.get(index).previousHash;
+    }
+
+    @Override
+    public int difficulty(int index) {
+        return this.blocks.get(index).difficulty;
+    }
+
+    @Override
+    public void setOwner(BlockChain owner) {
+        this.owner = owner;
+        for(Block block : this.blocks){
+            block.owner = owner;
+        }
+    }
+
+    @Override
+    public ChainStore startingAt(int base) {
+        return new ListChainStore(base);
+    }
+
+}
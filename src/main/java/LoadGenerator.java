@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 8, 2022
+ *
+ * This class puts a running serverTCP or serverNIO under load and reports how it holds up.
+ * It runs a number of simulated clients, each on its own connection and thread, sending one request,
+ * waiting for the answer and sending the next, for a fixed time.
+ * Every request is picked at random from a weighted mix of adding a block, verifying, viewing the chain and
+ * asking for the status, new blocks get a difficulty picked at random from a list.
+ *
+ * Latencies are recorded per operation after a warm up, and printed with the throughput as
+ * mean, p50, p99, p99.9 and max in milliseconds. A client whose connection breaks stops and its failure is counted.
+ * Since each client waits for its answer before the next request, a slow answer delays the requests behind it
+ * instead of showing up in their latencies; more clients keep more requests in flight.
+ *
+ * Usage: java LoadGenerator [clients] [seconds] [warm up seconds] [mix] [difficulties] [host] [port] [json|binary]
+ * e.g.   java LoadGenerator 8 30 5 status=70,add=10,verify=10,view=10 2,3 localhost 6789 json
+ */
+
+public class LoadGenerator {
+
+    //The operations of the mix, by the name used on the command line
+    enum Operation {
+        STATUS("status"), ADD("add"), VERIFY("verify"), VIEW("view");
+
+        final String name;
+
+        Operation(String name) {
+            this.name = name;
+        }
+    }
+
+    static final String DEFAULT_MIX = "status=70,add=10,verify=10,view=10";
+
+    final String host;
+    final int port;
+    final boolean binary;
+    //Weights of the operations, by ordinal, and their sum
+    final int[] weights;
+    final int totalWeight;
+    final int[] difficulties;
+
+    public LoadGenerator(String host, int port, boolean binary, String mix, String difficulties) {
+        this.host = host;
+        this.port = port;
+        this.binary = binary;
+        this.weights = parseMix(mix);
+        int sum = 0;
+        for(int weight : this.weights){
+            sum += weight;
+        }
+        if(sum <= 0){
+            throw new IllegalArgumentException("The mix has no operation: " + mix);
+        }
+        this.totalWeight = sum;
+        String[] parts = difficulties.split(",");
+        this.difficulties = new int[parts.length];
+        for(int i = 0; i < parts.length; i++){
+            this.difficulties[i] = Integer.parseInt(parts[i].trim());
+            if(this.difficulties[i] <= 0){
+                throw new IllegalArgumentException("Difficulty must be > 0: " + parts[i]);
+            }
+        }
+    }
+
+    /**
+     * @param mix like status=70,add=10
+     * @return the weight of each operation by ordinal, 0 for operations not in the mix
+     */
+    static int[] parseMix(String mix){
+        int[] weights = new int[Operation.values().length];
+        for(String part : mix.split(",")){
+            String[] pair = part.trim().split("=");
+            Operation operation = null;
+            for(Operation candidate : Operation.values()){
+                if(candidate.name.equals(pair[0].trim())){
+                    operation = candidate;
+                }
+            }
+            if(operation == null || pair.length != 2){
+                throw new IllegalArgumentException("Unknown operation in the mix: " + part);
+            }
+            weights[operation.ordinal()] = Integer.parseInt(pair[1].trim());
+            if(weights[operation.ordinal()] < 0){
+                throw new IllegalArgumentException("Weight must be >= 0: " + part);
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * What one simulated client measured, only touched by its own thread until it is done
+     */
+    static class ClientStats {
+        final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+        final long[] errors = new long[Operation.values().length];
+
+        ClientStats() {
+            for(int i = 0; i < this.latencies.length; i++){
+                this.latencies[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * Run the clients and merge what they measured
+     * @param clients
+     * @param seconds
+     * @param warmUpSeconds
+     * @return the merged stats
+     * @throws IOException if a client cannot connect
+     * @throws InterruptedException
+     */
+    public ClientStats run(int clients, int seconds, int warmUpSeconds) throws IOException, InterruptedException {
+        List<ChainClient> connections = new ArrayList<>();
+        List<ClientStats> stats = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        //Times are set once every client is connected
+        long[] times = new long[2];
+
+        try {
+            for(int i = 0; i < clients; i++){
+                ChainClient client = new ChainClient(this.host, this.port, this.binary);
+                connections.add(client);
+                ClientStats clientStats = new ClientStats();
+                stats.add(clientStats);
+                int id = i;
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                        simulate(client, id, clientStats, times[0], times[1]);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, "load-client-" + i);
+                threads.add(thread);
+                thread.start();
+            }
+
+            long now = System.nanoTime();
+            times[0] = now + warmUpSeconds * 1_000_000_000L;
+            times[1] = times[0] + (seconds - warmUpSeconds) * 1_000_000_000L;
+            //The latch publishes the times to the clients
+            start.countDown();
+            for(Thread thread : threads){
+                thread.join();
+            }
+        } finally {
+            start.countDown();
+            for(ChainClient client : connections){
+                client.close();
+            }
+        }
+
+        ClientStats merged = new ClientStats();
+        for(ClientStats clientStats : stats){
+            for(int i = 0; i < merged.latencies.length; i++){
+                merged.latencies[i].add(clientStats.latencies[i]);
+                merged.errors[i] += clientStats.errors[i];
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * The loop of one simulated client
+     * @param client
+     * @param id
+     * @param stats
+     * @param measureFrom nanoTime from which latencies are recorded
+     * @param end nanoTime to stop at
+     */
+    private void simulate(ChainClient client, int id, ClientStats stats, long measureFrom, long end){
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long sent = 0;
+        long now = System.nanoTime();
+        while(now < end){
+            Operation operation = pick(random.nextInt(this.totalWeight));
+            long before = now;
+            try {
+                switch (operation) {
+                    case STATUS:
+                        client.status();
+                        break;
+                    case ADD:
+                        int difficulty = this.difficulties[random.nextInt(this.difficulties.length)];
+                        client.addBlock(difficulty, "load-" + id + "-" + sent);
+                        break;
+                    case VERIFY:
+                        client.verify();
+                        break;
+                    default:
+                        client.viewChain();
+                }
+            } catch (IOException e) {
+                //The connection is gone, so is this client
+                stats.errors[operation.ordinal()]++;
+                System.out.println("Client " + id + " stopped: " + e.getMessage());
+                return;
+            }
+            sent++;
+            now = System.nanoTime();
+            if(before >= measureFrom && now <= end){
+                stats.latencies[operation.ordinal()].record(now - before);
+            }
+        }
+    }
+
+    private Operation pick(int draw){
+        for(Operation operation : Operation.values()){
+            draw -= this.weights[operation.ordinal()];
+            if(draw < 0){
+                return operation;
+            }
+        }
+        throw new IllegalStateException("Draw beyond the total weight");
+    }
+
+    /**
+     * Print one line per operation in the mix and one for all of them
+     * @param stats
+     * @param seconds length of the measured interval
+     */
+    static void report(ClientStats stats, int seconds){
+        System.out.println(String.format("%-8s %10s %10s %9s %9s %9s %9s %9s %7s",
+                "op", "count", "ops/s", "mean ms", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "errors"));
+        LatencyHistogram all = new LatencyHistogram();
+        long errors = 0;
+        for(Operation operation : Operation.values()){
+            LatencyHistogram latencies = stats.latencies[operation.ordinal()];
+            all.add(latencies);
+            errors += stats.errors[operation.ordinal()];
+            if(latencies.getCount() > 0 || stats.errors[operation.ordinal()] > 0){
+                printLine(operation.name, latencies, stats.errors[operation.ordinal()], seconds);
+            }
+        }
+        printLine("all", all, errors, seconds);
+    }
+
+    private static void printLine(String name, LatencyHistogram latencies, long errors, int seconds){
+        System.out.println(String.format("%-8s %10d %10.1f %9.3f %9.3f %9.3f %9.3f %9.3f %7d",
+                name, latencies.getCount(), (double) latencies.getCount() / seconds,
+                latencies.getMean() / 1e6, latencies.percentile(0.5) / 1e6, latencies.percentile(0.99) / 1e6,
+                latencies.percentile(0.999) / 1e6, latencies.getMax() / 1e6, errors));
+    }
+
+    public static void main(String[] args) {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int warmUpSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        String mix = args.length > 3 ? args[3] : DEFAULT_MIX;
+        String difficulties = args.length > 4 ? args[4] : "2";
+        String host = args.length > 5 ? args[5] : "localhost";
+        int port = args.length > 6 ? Integer.parseInt(args[6]) : 6789;
+        boolean binary = args.length > 7 && args[7].equals("binary");
+        if(clients <= 0 || warmUpSeconds < 0 || seconds <= warmUpSeconds){
+            System.out.println("Need at least one client and a run longer than its warm up");
+            return;
+        }
+
+        System.out.println("Running " + clients + " clients for " + seconds + " seconds (" + warmUpSeconds +
+                " to warm up) against " + host + ":" + port + " with " + mix + " at difficulty " + difficulties);
+        try {
+            LoadGenerator generator = new LoadGenerator(host, port, binary, mix, difficulties);
+            report(generator.run(clients, seconds, warmUpSeconds), seconds - warmUpSeconds);
+        } catch (IOException e) {
+            System.out.println("IO: " + e.getMessage());
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 17, 2022
+ *
+ * This class is the ChainStore of a chain opened from a BlockLog with a Checkpoint.
+ * The blocks the checkpoint covers stay in the memory mapped log: each one is decoded from its latest record
+ * whenever it is asked for, so opening the chain does not read them, however long it is.
+ * Their totals and the hash of the last of them come from the checkpoint, so only verifying them again,
+ * after one of them changed, or viewing them reads them.
+ *
+ * The blocks after the checkpoint go to a store of the kind the chain was opened with.
+ * Covered blocks changed since the checkpoint are kept as Block objects, like ListChainStore keeps them,
+ * other covered blocks are handed out as views that belong to no chain, like ColumnChainStore hands them out.
+ */
+
+public class LogChainStore implements ChainStore {
+
+    private final BlockLog log;
+    //Number of blocks covered by the checkpoint
+    private final int covered;
+    private final ChainStore tail;
+    private final Map<Integer, Block> changed = new HashMap<>();
+    private BlockChain owner;
+
+    /**
+     * @param log holds the latest record of every covered block
+     * @param covered
+     * @param tail an empty store for the blocks after the covered ones
+     */
+    LogChainStore(BlockLog log, int covered, ChainStore tail) {
+        this.log = log;
+        this.covered = covered;
+        this.tail = tail;
+    }
+
+    @Override
+    public int size() {
+        return this.covered + this.tail.size();
+    }
+
+    @Override
+    public Block get(int index) {
+        Objects.checkIndex(index, size());
+        if(index >= this.covered){
+            return this.tail.get(index - this.covered);
+        }
+        Block block = this.changed.get(index);
+        return block != null ? block : this.log.readBlock(index);
+    }
+
+    @Override
+    public void add(Block block) {
+        this.tail.add(block);
+    }
+
+    @Override
+    public void set(int index, Block block) {
+        Objects.checkIndex(index, size());
+        if(index >= this.covered){
+            this.tail.set(index - this.covered, block);
+            return;
+        }
+        Block old = get(index);
+        if(old != block){
+            block.owner = this.owner;
+            this.changed.put(index, block);
+            if(this.owner != null){
+                this.owner.blockChanged(index);
+                if(block.difficulty != old.difficulty){
+                    this.owner.difficultyChanged(old.difficulty, block.difficulty);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Hash256 hash(int index) {
+        return index >= this.covered ? this.tail.hash(index - this.covered) : get(index).calculateHash();
+    }
+
+    @Override
+    public Hash256 previousHash(int index) {
+        return index >= this.covered ? this.tail.previousHash(index - this.covered) : get(index).previousHash;
+    }
+
+    @Override
+    public int difficulty(int index) {
+        return index >= this.covered ? this.tail.difficulty(index - this.covered) : get(index).difficulty;
+    }
+
+    @Override
+    public void setOwner(BlockChain owner) {
+        this.owner = owner;
+        this.tail.setOwner(owner);
+        for(Block block : this.changed.values()){
+            block.owner = owner;
+        }
+    }
+
+    @Override
+    public ChainStore startingAt(int base) {
+        return this.tail.startingAt(base);
+    }
+
+}
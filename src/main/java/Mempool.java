@@ -0,0 +1,71 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Nov 18, 2022
+ *
+ * This class collects submitted transactions until the miner packs them into a block.
+ * Transactions leave in submission order, in batches limited both by count and by the bytes of their data,
+ * so that one proof of work pays for a whole batch instead of a single transaction.
+ */
+
+public class Mempool {
+
+    private final ArrayDeque<MiningTicket> pending = new ArrayDeque<>();
+    private long pendingBytes;
+
+    /**
+     * Add a transaction and wake up a miner waiting for work
+     * @param ticket
+     */
+    public synchronized void add(MiningTicket ticket) {
+        this.pending.add(ticket);
+        this.pendingBytes += ticket.bytes;
+        notifyAll();
+    }
+
+    /**
+     * Wait for at least one transaction, then take the oldest ones up to maxCount transactions or maxBytes bytes.
+     * A single transaction larger than maxBytes still goes, alone.
+     * @param maxCount
+     * @param maxBytes
+     * @return the batch in submission order, never empty
+     * @throws InterruptedException
+     */
+    public synchronized List<MiningTicket> takeBatch(int maxCount, int maxBytes) throws InterruptedException {
+        while (this.pending.isEmpty()) {
+            wait();
+        }
+        List<MiningTicket> batch = new ArrayList<>();
+        long bytes = 0;
+        while (!this.pending.isEmpty() && batch.size() < maxCount) {
+            MiningTicket next = this.pending.peek();
+            if (!batch.isEmpty() && bytes + next.bytes > maxBytes) {
+                break;
+            }
+            batch.add(this.pending.poll());
+            bytes += next.bytes;
+            this.pendingBytes -= next.bytes;
+        }
+        return batch;
+    }
+
+    /**
+     * Simple getter method
+     * @return the number of transactions waiting
+     */
+    public synchronized int size() {
+        return this.pending.size();
+    }
+
+    /**
+     * Simple getter method
+     * @return the bytes of data waiting
+     */
+    public synchronized long getPendingBytes() {
+        return this.pendingBytes;
+    }
+
+}
@@ -0,0 +1,176 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Nov 21, 2022
+ *
+ * This class is the Merkle tree over the transactions of a batch block.
+ * A leaf is SHA-256(0x00 + transaction bytes), an inner node is SHA-256(0x01 + left + right),
+ * the prefixes keep a leaf from ever passing for an inner node.
+ * A level with an odd number of nodes pairs its last node with itself. That alone would give [a, b, c]
+ * and [a, b, c, c] the same top node, so the root is SHA-256(0x02 + number of transactions + top node),
+ * and a proof is only checked against the number of transactions it claims.
+ *
+ * The block header commits to the root instead of the transactions, so the cost of a header hash does not
+ * depend on the size of the batch. An inclusion proof is the list of siblings from the leaf up to the root,
+ * bit i of the position of the transaction tells whether sibling i sits on the left (1) or on the right (0).
+ *
+ * Unlike Block.SHA2Str(), roots and siblings are written with both hex digits of every byte (64 characters),
+ * since a proof has to reproduce them exactly.
+ */
+
+public class MerkleTree {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    //levels.get(0) holds the leaves, the last level holds the top node alone
+    private final List<byte[][]> levels = new ArrayList<>();
+    private final byte[] root;
+
+    /**
+     * Build the tree over the transactions, in their order in the block
+     * @param transactions
+     */
+    public MerkleTree(List<String> transactions){
+        if(transactions.isEmpty()){
+            throw new IllegalArgumentException("A Merkle tree needs at least one transaction");
+        }
+        MessageDigest digest = newDigest();
+        byte[][] level = new byte[transactions.size()][];
+        for(int i = 0; i < level.length; i++){
+            level[i] = leaf(digest, transactions.get(i));
+        }
+        this.levels.add(level);
+        while(level.length > 1){
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for(int i = 0; i < parents.length; i++){
+                byte[] left = level[2 * i];
+                byte[] right = 2 * i + 1 < level.length ? level[2 * i + 1] : left;
+                parents[i] = node(digest, left, right);
+            }
+            this.levels.add(parents);
+            level = parents;
+        }
+        this.root = root(digest, transactions.size(), level[0]);
+    }
+
+    /**
+     * Simple getter method
+     * @return the root as 64 hex digits
+     */
+    public String getRoot(){
+        return hex(this.root);
+    }
+
+    /**
+     * The siblings on the path from a transaction up to the root
+     * @param position
+     * @return the siblings as 64 hex digits each, from the leaf level up
+     */
+    public String[] proof(int position){
+        byte[][] leaves = this.levels.get(0);
+        if(position < 0 || position >= leaves.length){
+            throw new IndexOutOfBoundsException("Transaction " + position + " of " + leaves.length);
+        }
+        String[] siblings = new String[this.levels.size() - 1];
+        for(int h = 0; h < siblings.length; h++){
+            byte[][] level = this.levels.get(h);
+            int sibling = position ^ 1;
+            //The last node of an odd level is its own sibling
+            siblings[h] = hex(level[sibling < level.length ? sibling : position]);
+            position >>= 1;
+        }
+        return siblings;
+    }
+
+    /**
+     * Recompute the root from a transaction and its inclusion proof, in O(log n) hashes.
+     * The proof must have one sibling per level of a tree over count transactions,
+     * and the last node of an odd level must be paired with itself.
+     * @param transaction
+     * @param position
+     * @param count number of transactions of the block
+     * @param proof
+     * @return the root as 64 hex digits, to compare with the one in the block header, null if the proof cannot be one
+     */
+    public static String rootFromProof(String transaction, int position, int count, String[] proof){
+        if(count < 1 || position < 0 || position >= count){
+            return null;
+        }
+        MessageDigest digest = newDigest();
+        byte[] current = leaf(digest, transaction);
+        int width = count;
+        int level = 0;
+        while(width > 1){
+            if(level == proof.length){
+                return null;
+            }
+            byte[] other = fromHex(proof[level]);
+            if(position == width - 1 && (width & 1) == 1 && !MessageDigest.isEqual(other, current)){
+                return null;
+            }
+            current = (position & 1) == 0 ? node(digest, current, other) : node(digest, other, current);
+            position >>= 1;
+            width = (width + 1) / 2;
+            level++;
+        }
+        if(level != proof.length){
+            return null;
+        }
+        return hex(root(digest, count, current));
+    }
+
+    private static MessageDigest newDigest(){
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] leaf(MessageDigest digest, String transaction){
+        digest.update((byte) 0);
+        digest.update(String.valueOf(transaction).getBytes(StandardCharsets.UTF_8));
+        return digest.digest();
+    }
+
+    private static byte[] root(MessageDigest digest, int count, byte[] top){
+        digest.update((byte) 2);
+        digest.update(ByteBuffer.allocate(4).putInt(count).array());
+        digest.update(top);
+        return digest.digest();
+    }
+
+    private static byte[] node(MessageDigest digest, byte[] left, byte[] right){
+        digest.update((byte) 1);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    static String hex(byte[] bytes){
+        char[] out = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++){
+            out[2 * i] = HEX[(bytes[i] >>> 4) & 0x0F];
+            out[2 * i + 1] = HEX[bytes[i] & 0x0F];
+        }
+        return new String(out);
+    }
+
+    static byte[] fromHex(String hex){
+        if(hex.length() != 64){
+            throw new IllegalArgumentException("Not a 64 digit hash: " + hex);
+        }
+        byte[] bytes = new byte[32];
+        for(int i = 0; i < bytes.length; i++){
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+}
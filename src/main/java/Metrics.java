@@ -0,0 +1,277 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 12, 2022
+ *
+ * This class collects what a running chain and its servers do, so the hot paths can be watched without a profiler:
+ * - the latency in nanoseconds of every request, per selection, from reading it to having written its answer
+ * - the hashes attempted per mined block, the nonces found, i.e. the blocks mined, added or repaired,
+ *   and the proofs of work stopped by their MiningJob
+ * - the active connections, the connections accepted, and the bytes received from and sent to clients
+ *
+ * Counters are LongAdders and histograms are locked one at a time for a few nanoseconds, so recording stays cheap
+ * on the request and mining threads. Every BlockChain has its own registry.
+ * It is read through command 13 as Json, or as plain text in the Prometheus format from serveScrapes().
+ */
+
+public class Metrics {
+
+    //Requests with a selection beyond this one are counted with it
+    static final int MAX_SELECTION = 15;
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    //Latencies per selection, each guarded by itself
+    private final LatencyHistogram[] requestNanos = new LatencyHistogram[MAX_SELECTION + 1];
+    //Hashes attempted per mined block, guarded by itself
+    private final LatencyHistogram hashesPerBlock = new LatencyHistogram();
+    private final LongAdder hashesAttempted = new LongAdder();
+    private final LongAdder noncesFound = new LongAdder();
+    private final LongAdder miningStopped = new LongAdder();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    public Metrics() {
+        for(int i = 0; i <= MAX_SELECTION; i++){
+            this.requestNanos[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Count one answered request
+     * @param selection
+     * @param nanos from reading the request to having written its answer
+     */
+    public void recordRequest(int selection, long nanos){
+        LatencyHistogram histogram = this.requestNanos[Math.max(0, Math.min(selection, MAX_SELECTION))];
+        synchronized (histogram) {
+            histogram.record(nanos);
+        }
+    }
+
+    /**
+     * Count one proof of work that found its nonce
+     * @param hashes the hashes it attempted, over all threads
+     */
+    public void recordMining(long hashes){
+        this.noncesFound.increment();
+        this.hashesAttempted.add(hashes);
+        synchronized (this.hashesPerBlock) {
+            this.hashesPerBlock.record(hashes);
+        }
+    }
+
+    /**
+     * Count one proof of work stopped by its MiningJob before it found a nonce
+     * @param hashes the hashes it attempted
+     */
+    public void recordStoppedMining(long hashes){
+        this.miningStopped.increment();
+        this.hashesAttempted.add(hashes);
+    }
+
+    public void connectionOpened(){
+        this.connections.increment();
+        this.activeConnections.incrementAndGet();
+    }
+
+    public void connectionClosed(){
+        this.activeConnections.decrementAndGet();
+    }
+
+    public void bytesReceived(long bytes){
+        this.bytesIn.add(bytes);
+    }
+
+    public void bytesSent(long bytes){
+        this.bytesOut.add(bytes);
+    }
+
+    /**
+     * @param in
+     * @return in, counting every byte read from it as received
+     */
+    public InputStream countIn(InputStream in){
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if(b >= 0){
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                int read = super.read(bytes, offset, length);
+                if(read > 0){
+                    bytesIn.add(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * @param out
+     * @return out, counting every byte written to it as sent
+     */
+    public OutputStream countOut(OutputStream out){
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                this.out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                this.out.write(bytes, offset, length);
+                bytesOut.add(length);
+            }
+        };
+    }
+
+    /**
+     * @param histogram
+     * @return a copy of histogram, taken under its lock
+     */
+    private static LatencyHistogram snapshot(LatencyHistogram histogram){
+        LatencyHistogram copy = new LatencyHistogram();
+        synchronized (histogram) {
+            copy.add(histogram);
+        }
+        return copy;
+    }
+
+    /**
+     * Write the metrics as the rest of a Json object: the selections that were requested with their latencies,
+     * the mining counters and the connection counters
+     * @param out
+     * @throws IOException
+     */
+    public void writeJsonFields(Writer out) throws IOException {
+        out.write("\"requests\":[");
+        boolean first = true;
+        for(int i = 0; i <= MAX_SELECTION; i++){
+            LatencyHistogram latencies = snapshot(this.requestNanos[i]);
+            if(latencies.getCount() == 0){
+                continue;
+            }
+            if(!first){
+                out.write(",");
+            }
+            first = false;
+            out.write("{\"selection\":" + i + ",");
+            writeJsonSummary(latencies, out);
+            out.write("}");
+        }
+        out.write("],\"hashesPerBlock\":{");
+        writeJsonSummary(snapshot(this.hashesPerBlock), out);
+        out.write("},\"hashesAttempted\":" + this.hashesAttempted.sum() +
+                ",\"noncesFound\":" + this.noncesFound.sum() +
+                ",\"miningStopped\":" + this.miningStopped.sum() +
+                ",\"activeConnections\":" + this.activeConnections.get() +
+                ",\"connections\":" + this.connections.sum() +
+                ",\"bytesIn\":" + this.bytesIn.sum() +
+                ",\"bytesOut\":" + this.bytesOut.sum());
+    }
+
+    private static void writeJsonSummary(LatencyHistogram histogram, Writer out) throws IOException {
+        out.write("\"count\":" + histogram.getCount() + ",\"sum\":" + histogram.getTotal() +
+                ",\"p50\":" + histogram.percentile(0.5) + ",\"p90\":" + histogram.percentile(0.9) +
+                ",\"p99\":" + histogram.percentile(0.99) + ",\"p999\":" + histogram.percentile(0.999) +
+                ",\"max\":" + histogram.getMax());
+    }
+
+    /**
+     * Write the metrics in the Prometheus text format. Histograms become summaries with QUANTILES,
+     * request latencies stay in nanoseconds and carry their selection as a label.
+     * @param out
+     * @throws IOException
+     */
+    public void writeText(Writer out) throws IOException {
+        out.write("# HELP blockchain_request_nanos Latency of answering a request, by selection\n");
+        out.write("# TYPE blockchain_request_nanos summary\n");
+        for(int i = 0; i <= MAX_SELECTION; i++){
+            LatencyHistogram latencies = snapshot(this.requestNanos[i]);
+            if(latencies.getCount() > 0){
+                writeTextSummary("blockchain_request_nanos", "selection=\"" + i + "\"", latencies, out);
+            }
+        }
+        out.write("# HELP blockchain_hashes_per_block Hashes attempted to mine a block\n");
+        out.write("# TYPE blockchain_hashes_per_block summary\n");
+        writeTextSummary("blockchain_hashes_per_block", null, snapshot(this.hashesPerBlock), out);
+        writeTextValue("blockchain_hashes_attempted_total", "counter", "Hashes attempted by proof of work",
+                this.hashesAttempted.sum(), out);
+        writeTextValue("blockchain_nonces_found_total", "counter", "Blocks mined, added or repaired",
+                this.noncesFound.sum(), out);
+        writeTextValue("blockchain_mining_stopped_total", "counter", "Proofs of work stopped by their deadline, " +
+                "budget or a cancel", this.miningStopped.sum(), out);
+        writeTextValue("blockchain_connections_active", "gauge", "Clients connected now",
+                this.activeConnections.get(), out);
+        writeTextValue("blockchain_connections_total", "counter", "Clients connected since the start",
+                this.connections.sum(), out);
+        writeTextValue("blockchain_received_bytes_total", "counter", "Bytes received from clients",
+                this.bytesIn.sum(), out);
+        writeTextValue("blockchain_sent_bytes_total", "counter", "Bytes sent to clients",
+                this.bytesOut.sum(), out);
+    }
+
+    private static void writeTextSummary(String name, String labels, LatencyHistogram histogram, Writer out)
+            throws IOException {
+        String prefix = labels == null ? "" : labels + ",";
+        for(double quantile : QUANTILES){
+            out.write(name + "{" + prefix + "quantile=\"" + quantile + "\"} " + histogram.percentile(quantile) + "\n");
+        }
+        String suffix = labels == null ? " " : "{" + labels + "} ";
+        out.write(name + "_sum" + suffix + histogram.getTotal() + "\n");
+        out.write(name + "_count" + suffix + histogram.getCount() + "\n");
+    }
+
+    private static void writeTextValue(String name, String type, String help, long value, Writer out)
+            throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+        out.write(name + " " + value + "\n");
+    }
+
+    /**
+     * Answer GET /metrics on the loopback interface with writeText(), on a thread of the HTTP server
+     * @param port
+     * @return the server, already started
+     * @throws IOException if the port is taken
+     */
+    public HttpServer serveScrapes(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            try (exchange) {
+                StringWriter text = new StringWriter();
+                writeText(text);
+                byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+}
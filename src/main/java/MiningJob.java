@@ -0,0 +1,179 @@
+import java.math.BigInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 14, 2022
+ *
+ * This class bounds one proof of work and shows how far it has got.
+ * A job may have a deadline, counted from its creation so the time spent waiting for the chain counts too,
+ * and a budget of hashes. It can be cancelled from any thread, e.g. when its client disconnects.
+ * The mining threads report their attempts every CHECK_EVERY nonces and stop together once the job is over
+ * its deadline or budget or cancelled, proofOfWork() then throws Stopped instead of returning a hash.
+ *
+ * Progress is the nonces tried so far, the time since mining started, and an estimate of the time remaining:
+ * a hash has the 16^difficulty expected number of tries to show proof of work, at the rate seen so far.
+ * Since every try is a fresh chance, a search that is already past that number is expected to need it again.
+ */
+
+public class MiningJob {
+
+    //Attempts of one mining thread between two checks of the job, a power of 2
+    static final int CHECK_EVERY = 1 << 12;
+
+    public static final String CANCELLED = "cancelled";
+    public static final String DEADLINE = "deadline reached";
+    public static final String BUDGET = "hash budget used up";
+
+    /**
+     * Thrown by proofOfWork() when its job stopped before a nonce was found
+     */
+    public static class Stopped extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Stopped(String reason) {
+            super("Mining stopped: " + reason);
+        }
+    }
+
+    //Asked for at first, the chain may mine at another difficulty
+    private volatile int difficulty;
+    //The job stops timeLimit nanoseconds after it was created, 0 for no limit
+    final long created;
+    final long timeLimit;
+    //Attempts after which the job stops, Long.MAX_VALUE for none
+    final long hashBudget;
+    private final LongAdder tried = new LongAdder();
+    //nanoTime mining started at, and the block being mined, set by start()
+    private volatile long startNanos;
+    private volatile int index = -1;
+    //Why the job stopped, null while it may go on
+    private volatile String stopReason;
+
+    /**
+     * @param difficulty of the block to mine
+     * @param timeLimitMillis from now, 0 for none
+     * @param hashBudget 0 for none
+     */
+    public MiningJob(int difficulty, long timeLimitMillis, long hashBudget) {
+        this.difficulty = difficulty;
+        this.created = System.nanoTime();
+        this.timeLimit = Math.max(0, Math.min(timeLimitMillis, Long.MAX_VALUE / 1_000_000)) * 1_000_000;
+        this.hashBudget = hashBudget > 0 ? hashBudget : Long.MAX_VALUE;
+    }
+
+    /**
+     * Called by the chain when mining begins
+     * @param index of the block
+     * @param difficulty the block is mined at
+     * @throws Stopped if the job stopped before it started
+     */
+    void start(int index, int difficulty){
+        this.index = index;
+        this.difficulty = difficulty;
+        this.startNanos = System.nanoTime();
+        if(checkStop()){
+            throw new Stopped(this.stopReason);
+        }
+    }
+
+    /**
+     * Count the attempts of a mining thread since its last report
+     * @param attempts
+     * @return true if mining has to stop
+     */
+    boolean report(long attempts){
+        count(attempts);
+        return checkStop();
+    }
+
+    /**
+     * Count the last attempts of a mining thread, without checking the limits of a search that is over
+     * @param attempts
+     */
+    void count(long attempts){
+        this.tried.add(attempts);
+    }
+
+    private boolean checkStop(){
+        if(this.stopReason != null){
+            return true;
+        }
+        if(this.timeLimit > 0 && System.nanoTime() - this.created >= this.timeLimit){
+            this.stopReason = DEADLINE;
+        } else if(this.tried.sum() >= this.hashBudget){
+            this.stopReason = BUDGET;
+        }
+        return this.stopReason != null;
+    }
+
+    /**
+     * Stop mining at the next check of any of its threads. Nothing happens to a job that already stopped.
+     */
+    public void cancel(){
+        if(this.stopReason == null){
+            this.stopReason = CANCELLED;
+        }
+    }
+
+    /**
+     * Simple getter method
+     * @return why the job stopped, null if it did not
+     */
+    public String getStopReason(){
+        return this.stopReason;
+    }
+
+    /**
+     * Simple getter method
+     * @return the index of the block being mined, -1 before mining started
+     */
+    public int getIndex(){
+        return this.index;
+    }
+
+    /**
+     * Simple getter method
+     * @return
+     */
+    public int getDifficulty(){
+        return this.difficulty;
+    }
+
+    /**
+     * @return the nonces tried so far, at most CHECK_EVERY per mining thread behind
+     */
+    public long getTried(){
+        return this.tried.sum();
+    }
+
+    /**
+     * @return milliseconds since mining started, 0 before
+     */
+    public long getElapsedMillis(){
+        long start = this.startNanos;
+        return start == 0 ? 0 : (System.nanoTime() - start) / 1_000_000;
+    }
+
+    /**
+     * @return 16^difficulty, the expected number of tries to find a nonce
+     */
+    public BigInteger getExpectedHashes(){
+        return BigInteger.ONE.shiftLeft(4 * this.difficulty);
+    }
+
+    /**
+     * @return the expected milliseconds until a nonce is found at the rate so far, -1 before there is a rate
+     */
+    public long getEstimatedRemainingMillis(){
+        long tried = getTried();
+        long elapsed = getElapsedMillis();
+        if(tried == 0 || elapsed == 0){
+            return -1;
+        }
+        double expected = getExpectedHashes().doubleValue();
+        double left = tried < expected ? expected - tried : expected;
+        return (long) Math.min(Long.MAX_VALUE, left * elapsed / tried);
+    }
+
+}
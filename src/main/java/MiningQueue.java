@@ -0,0 +1,140 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Nov 16, 2022
+ *
+ * This class mines submitted transactions in the background.
+ * submit() puts a transaction into the mempool and returns a MiningTicket immediately, instead of making
+ * the caller wait for the proof of work. A single miner thread takes the waiting transactions in submission order,
+ * up to maxBatchCount transactions or maxBatchBytes bytes, and mines them together as one block.
+ * The block gets the highest difficulty asked for in the batch. A batch of one is mined as a plain block.
+ * Tickets can be looked up by id until MAX_FINISHED_TICKETS newer tickets have finished.
+ */
+
+public class MiningQueue {
+
+    //Finished tickets kept for lookup, older ones are forgotten
+    static final int MAX_FINISHED_TICKETS = 10000;
+    static final int DEFAULT_BATCH_COUNT = 100;
+    static final int DEFAULT_BATCH_BYTES = 64 * 1024;
+
+    final BlockChain bc;
+    final Mempool mempool = new Mempool();
+    final Map<Long, MiningTicket> tickets = new ConcurrentHashMap<>();
+    final ArrayDeque<Long> finished = new ArrayDeque<>();
+    final AtomicLong nextId = new AtomicLong(1);
+    final Thread miner;
+    volatile int maxBatchCount = DEFAULT_BATCH_COUNT;
+    volatile int maxBatchBytes = DEFAULT_BATCH_BYTES;
+
+    public MiningQueue(BlockChain bc) {
+        this.bc = bc;
+        this.miner = new Thread(this::mine, "mining-queue");
+        this.miner.setDaemon(true);
+        this.miner.start();
+    }
+
+    /**
+     * Queue a transaction to be mined
+     * @param data not null, a batch cannot hold a missing transaction
+     * @param difficulty
+     * @return the ticket to follow the transaction with
+     */
+    public MiningTicket submit(String data, int difficulty) {
+        //Turned away here, a null would fail the whole batch it was mined with
+        if (data == null) {
+            throw new IllegalArgumentException("A queued transaction needs data");
+        }
+        MiningTicket ticket = new MiningTicket(this.nextId.getAndIncrement(), data, difficulty);
+        this.tickets.put(ticket.id, ticket);
+        this.mempool.add(ticket);
+        return ticket;
+    }
+
+    /**
+     * Look up a ticket
+     * @param id
+     * @return the ticket, or null if it does not exist or was forgotten
+     */
+    public MiningTicket getTicket(long id) {
+        return this.tickets.get(id);
+    }
+
+    /**
+     * Simple getter method
+     * @return the number of transactions waiting to be mined
+     */
+    public int getQueueLength() {
+        return this.mempool.size();
+    }
+
+    /**
+     * Set the largest number of transactions mined in one block
+     * @param maxBatchCount
+     */
+    public void setMaxBatchCount(int maxBatchCount) {
+        this.maxBatchCount = Math.max(1, maxBatchCount);
+    }
+
+    /**
+     * Set the largest total size of transaction data mined in one block
+     * @param maxBatchBytes
+     */
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        this.maxBatchBytes = Math.max(1, maxBatchBytes);
+    }
+
+    /**
+     * The miner thread: take the next batch of transactions, mine its block and record the result
+     */
+    private void mine() {
+        while (true) {
+            List<MiningTicket> batch;
+            try {
+                batch = this.mempool.takeBatch(this.maxBatchCount, this.maxBatchBytes);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            int difficulty = 0;
+            List<String> transactions = new ArrayList<>(batch.size());
+            for (MiningTicket ticket : batch) {
+                ticket.status = MiningTicket.MINING;
+                difficulty = Math.max(difficulty, ticket.difficulty);
+                transactions.add(ticket.data);
+            }
+
+            try {
+                Block block = batch.size() == 1
+                        ? new Block(this.bc.getChainSize(), this.bc.getTime(), transactions.get(0), difficulty)
+                        : new Block(this.bc.getChainSize(), this.bc.getTime(), transactions, difficulty);
+                this.bc.addBlock(block);
+                Hash256 hash = block.calculateHash();
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).complete(block, i, hash);
+                }
+            } catch (RuntimeException e) {
+                for (MiningTicket ticket : batch) {
+                    ticket.fail(String.valueOf(e.getMessage()));
+                }
+            }
+            for (MiningTicket ticket : batch) {
+                forgetOldTickets(ticket.id);
+            }
+        }
+    }
+
+    private void forgetOldTickets(long id) {
+        this.finished.add(id);
+        while (this.finished.size() > MAX_FINISHED_TICKETS) {
+            this.tickets.remove(this.finished.poll());
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Nov 16, 2022
+ *
+ * This class is the receipt for a transaction submitted to a MiningQueue.
+ * It is handed out right away, and filled in by the background miner once the block holding the transaction
+ * has been added to the chain. Clients can poll it, or wait on it with a timeout.
+ */
+
+public class MiningTicket {
+
+    public static final String QUEUED = "QUEUED";
+    public static final String MINING = "MINING";
+    public static final String DONE = "DONE";
+    public static final String FAILED = "FAILED";
+
+    final long id;
+    final String data;
+    final int difficulty;
+    //Size of the data, counted against the byte limit of a batch
+    final int bytes;
+
+    volatile String status;
+    //Filled in when the status becomes DONE, position is the place of the transaction inside its block
+    int index;
+    int position;
+    BigInteger nonce;
+    Hash256 hash;
+    //Filled in when the status becomes FAILED
+    String error;
+
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    MiningTicket(long id, String data, int difficulty) {
+        this.id = id;
+        this.data = data;
+        this.difficulty = difficulty;
+        this.bytes = data == null ? 0 : data.getBytes(StandardCharsets.UTF_8).length;
+        this.status = QUEUED;
+    }
+
+    /**
+     * Record the mined block and release every waiting thread
+     * @param block
+     * @param position
+     * @param hash
+     */
+    void complete(Block block, int position, Hash256 hash) {
+        this.index = block.getIndex();
+        this.position = position;
+        this.nonce = block.getNonce();
+        this.hash = hash;
+        this.status = DONE;
+        this.finished.countDown();
+    }
+
+    /**
+     * Record why mining failed and release every waiting thread
+     * @param error
+     */
+    void fail(String error) {
+        this.error = error;
+        this.status = FAILED;
+        this.finished.countDown();
+    }
+
+    /**
+     * Wait until the ticket is done or failed, or until the timeout runs out
+     * @param timeoutMillis 0 to return right away
+     * @return true if the ticket is finished
+     * @throws InterruptedException
+     */
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        return this.finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Simple getter method
+     * @return
+     */
+    public long getId() {
+        return this.id;
+    }
+
+    /**
+     * Simple getter method
+     * @return QUEUED, MINING, DONE or FAILED
+     */
+    public String getStatus() {
+        return this.status;
+    }
+
+    /**
+     * Simple getter method
+     * @return the index of the mined block, once DONE
+     */
+    public int getIndex() {
+        return this.index;
+    }
+
+    /**
+     * Simple getter method
+     * @return the place of the transaction inside its block, once DONE
+     */
+    public int getPosition() {
+        return this.position;
+    }
+
+    /**
+     * Simple getter method
+     * @return the nonce of the mined block, once DONE
+     */
+    public BigInteger getNonce() {
+        return this.nonce;
+    }
+
+    /**
+     * Simple getter method
+     * @return the hash of the mined block, once DONE
+     */
+    public Hash256 getHash() {
+        return this.hash;
+    }
+
+}
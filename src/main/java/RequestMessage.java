@@ -6,10 +6,24 @@
  */
 
 public class RequestMessage {
+    //Chosen by the client and sent back in the answer, 0 for none
+    long id;
     int selection;
     int difficulty;
     String data;
     int blockIndex;
+    //End of a block range (exclusive) for command 8
+    int toIndex;
+    //Number of most recent blocks for command 9
+    int count;
+    //Ticket to look up for command 11, and how long to wait for it in milliseconds.
+    //For command 1 the timeout is how long mining may take, 0 for as long as the server allows
+    long ticket;
+    long timeout;
+    //Most hashes command 1 may try, 0 for no limit
+    long hashBudget;
+    //Place of a transaction inside block blockIndex for command 12
+    int position;
 
     public RequestMessage(int selection, int difficulty, String data, int blockIndex) {
         this.selection = selection;
@@ -18,4 +32,21 @@ public class RequestMessage {
         this.blockIndex = blockIndex;
     }
 
+    public RequestMessage(int selection, int blockIndex, int toIndex, int count) {
+        this(selection, 0, "", blockIndex);
+        this.toIndex = toIndex;
+        this.count = count;
+    }
+
+    public RequestMessage(int selection, int blockIndex, int position) {
+        this(selection, 0, "", blockIndex);
+        this.position = position;
+    }
+
+    public RequestMessage(int selection, long ticket, long timeout) {
+        this(selection, 0, "", 0);
+        this.ticket = ticket;
+        this.timeout = timeout;
+    }
+
 }
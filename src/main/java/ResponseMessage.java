@@ -1,3 +1,5 @@
+import java.math.BigInteger;
+
 /**
  * Author: Changzhou Zheng
  * Date: Oct 27, 2022
@@ -7,16 +9,33 @@
 
 public class ResponseMessage {
     int selection;
+    //The id of the request this answers, 0 if it had none
+    long id;
     int size;
     String chainHash;
-    int totalHashes;
+    BigInteger totalHashes;
     int totalDiff;
-    int recentNonce;
+    long recentNonce;
     int diff;
     int hps;
     String response;
+    //Blocks returned by commands 7, 8 and 9
+    BlockMessage[] blocks;
+    //Ticket of commands 10 and 11, its status and the mined block once the status is DONE
+    long ticket;
+    String status;
+    int index;
+    int position;
+    long nonce;
+    String hash;
+    //Inclusion proof of command 12: the transaction, the header of its block and the Merkle siblings
+    String transaction;
+    BlockMessage header;
+    String[] proof;
+    //Text of an answer that came as Json over the binary protocol, never sent itself
+    transient String json;
 
-    public ResponseMessage(int selection, int size, String chainHash, int totalHashes, int totalDiff, int recentNonce, int diff, int hps, String response) {
+    public ResponseMessage(int selection, int size, String chainHash, BigInteger totalHashes, int totalDiff, long recentNonce, int diff, int hps, String response) {
         this.selection = selection;
         this.size = size;
         this.chainHash = chainHash;
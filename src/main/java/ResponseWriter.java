@@ -0,0 +1,46 @@
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Nov 28, 2022
+ *
+ * This interface is how serverTCP.handleRequest() answers a client, whatever protocol the client speaks.
+ * Status and ticket answers are handed over as values, so a binary protocol can send them as fixed-width fields.
+ * Everything else (chain views, block pages, proofs, plain messages) is a Json body written by the caller.
+ */
+
+public interface ResponseWriter {
+
+    /**
+     * Send the status of the chain, shared by commands 0, 1, 2, 4 and 5
+     * @param msg
+     * @param bc
+     * @param reply the sentence for the "response" key, null to leave it out
+     * @throws IOException
+     */
+    void status(RequestMessage msg, BlockChain bc, String reply) throws IOException;
+
+    /**
+     * Send the state of a mining ticket, commands 10 and 11
+     * @param msg
+     * @param ticket
+     * @throws IOException
+     */
+    void ticket(RequestMessage msg, MiningTicket ticket) throws IOException;
+
+    /**
+     * Send a Json answer written by body
+     * @param body
+     * @throws IOException
+     */
+    void json(JsonBody body) throws IOException;
+
+    /**
+     * A Json answer, written straight to the connection by the Json protocol
+     */
+    interface JsonBody {
+        void writeTo(Writer out) throws IOException;
+    }
+
+}
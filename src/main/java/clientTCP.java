@@ -1,7 +1,4 @@
-import com.google.gson.Gson;
-
-import java.io.*;
-import java.net.Socket;
+import java.io.IOException;
 import java.net.SocketException;
 import java.util.Scanner;
 
@@ -11,28 +8,19 @@ import java.util.Scanner;
  *
  * This class is a client in a TCP communication
  * The main function for it is to send commands from 0 to 5, and 6 to cease itself from running
- * It also reads from the server side
- * Once server send back response messages in Json format,
- * this client will read useful parameters from the Json format response messages.
+ * The requests go through a ChainClient, which sends them and reads the Json format responses back,
+ * this client will read useful parameters from the response messages.
  * Finally, it shows users the result after the interpretation above.
  */
 
 public class clientTCP {
+
     public static void main(String[] args) {
         System.out.println("The client is running.");
 
-        //Arguments supply hostname
-        Socket clientSocket = null;
-
-        try {
-            int serverPort = 6789;
-            //Build the client socket with the user-assigned server port number
-            clientSocket = new Socket("localhost", serverPort);
-
-            //Enable the client to catch input streams
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            //Enable the client to send output streams
-            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream())));
+        int serverPort = 6789;
+        //Connect to the server with the user-assigned server port number
+        try (ChainClient client = new ChainClient("localhost", serverPort)) {
 
             //BufferReader return the current user input after each println
             Scanner userInput = new Scanner(System.in);
@@ -46,27 +34,23 @@ public class clientTCP {
                         "3. View the blockchain.\n" +
                         "4. Corrupt the chain.\n" +
                         "5. Hide the corruption by repairing the chain.\n" +
-                        "6. Exit");
+                        "6. Exit\n" +
+                        "7. View a block.\n" +
+                        "8. View a range of blocks.\n" +
+                        "9. View the most recent blocks.\n" +
+                        "10. Submit a transaction to be mined in the background.\n" +
+                        "11. Check a submitted transaction.\n" +
+                        "12. Prove a transaction is in a block.\n" +
+                        "13. View the server metrics.\n" +
+                        "14. View mining progress.\n" +
+                        "15. Cancel the block being mined.");
                 //Retrieve the option
                 option = userInput.nextInt();
 
                 //If the user is going to change one of the values
                 if (option == 0) {
-                    //The only parameter the server will be using is the first - the "selection"
-                    //The other parameters are set to be 0 or "" to avoid code coupling
-                    RequestMessage opt0Request = new RequestMessage(0, 0, "", 0);
-
-                    //Parse the request to a Json format String
-                    String outputMsg = toJson(opt0Request);
-
-                    //Send the Json format request to the server
-                    out.println(outputMsg);
-                    out.flush();
-
-                    //Read from the server
-                    String response = in.readLine();
-                    //Parse the input to a ResponseMessage object
-                    ResponseMessage responseObj = buildResponseObj(response);
+                    //Ask the server and wait for its response
+                    ResponseMessage responseObj = client.status();
 
                     //Print needed parameters by call from the ResponseMessage object
                     System.out.println("Current size of chain: "+responseObj.size);
@@ -88,60 +72,23 @@ public class clientTCP {
                     userInput.nextLine();
                     String data = userInput.nextLine();
 
-                    //This time, the RequestMessage contain the selection, difficulty level, and the transaction
-                    //However, the block index is left to be 0 to avoid from coupling
-                    RequestMessage opt1Request = new RequestMessage(1, diffLv, data, 0);
-                    String outputMsg = toJson(opt1Request);
+                    //Ask for a time limit, mining gives up after it
+                    System.out.println("Enter time limit in seconds, 0 for none");
+                    long seconds = userInput.nextLong();
 
-                    //Send the Json format request to the server
-                    out.println(outputMsg);
-                    out.flush();
-
-                    //Read from the server
-                    String response = in.readLine();
-                    //Parse the Json format input stream to a ResponseMessage object
-                    ResponseMessage responseObj = buildResponseObj(response);
+                    //This time, the request contains the difficulty level, the transaction and the time limit
+                    ResponseMessage responseObj = client.addBlock(diffLv, data, seconds * 1000, 0);
 
                     System.out.println(responseObj.response);
                 }
                 else if (option == 2) {
-                    //The only parameter the server will be using is the first - the "selection"
-                    //The other parameters are set to be 0 or "" to avoid code coupling
-                    RequestMessage opt2Request = new RequestMessage(2, 0, "", 0);
-                    String outputMsg = toJson(opt2Request);
-
-                    //Send the Json format request to the server
-                    out.println(outputMsg);
-                    out.flush();
-
-                    //Read from the server
-                    String response = in.readLine();
-                    //Parse the Json format input stream to a ResponseMessage object
-                    ResponseMessage responseObj = buildResponseObj(response);
+                    ResponseMessage responseObj = client.verify();
 
                     System.out.println(responseObj.response);
                 }
                 else if (option == 3) {
-                    //The only parameter the server will be using is the first - the "selection"
-                    //The other parameters are set to be 0 or "" to avoid code coupling
-                    RequestMessage opt3Request = new RequestMessage(3, 0, "", 0);
-                    String outputMsg = toJson(opt3Request);
-
-                    //Send the Json format request to the server
-                    out.println(outputMsg);
-                    out.flush();
-
-                    //To read the entire blockchain from server, we have to consider changing lines
-                    //Here use an iteration to read response messages line by line
-                    String response;
-                    while((response = in.readLine()) != null){
-                        System.out.println(response);
-                        if(response.charAt(response.length()-1) == '}'){
-                            System.out.println(in.readLine());
-                            break;
-                        }
-                    }
-
+                    //The entire blockchain comes back as one Json line
+                    System.out.println(client.viewChain());
                 }
                 else if (option == 4) {
                     System.out.println("corrupt the Blockchain");
@@ -154,39 +101,102 @@ public class clientTCP {
                     userInput.nextLine();
                     String data = userInput.nextLine();
 
-                    //A RequestMessage is built to deliver user-input content
-                    // alongside with the block index the user wanted to corrupt
-                    RequestMessage opt4Request = new RequestMessage(4, 0, data, corID);
-                    String outputMsg = toJson(opt4Request);
-
-                    //Send the Json format request to the server
-                    out.println(outputMsg);
-                    out.flush();
-
-                    //Read from the server
-                    String response = in.readLine();
-                    //Parse the Json format input stream to a ResponseMessage object
-                    ResponseMessage responseObj = buildResponseObj(response);
+                    //Deliver user-input content alongside with the block index the user wanted to corrupt
+                    ResponseMessage responseObj = client.corrupt(corID, data);
 
                     //Show the time for this operation in client console
                     System.out.println(responseObj.response);
                 }
                 else if (option == 5) {
-                    //The only parameter the server will be using is the first - the "selection"
-                    //The other parameters are set to be 0 or "" to avoid code coupling
-                    RequestMessage opt5Request = new RequestMessage(5, 0, "", 0);
-                    String outputMsg = toJson(opt5Request);
+                    ResponseMessage responseObj = client.repair();
 
-                    //Send the Json format request to the server
-                    out.println(outputMsg);
-                    out.flush();
+                    //Show the time for repairment
+                    System.out.println(responseObj.response+"\n");
+                }
+                else if (option == 7 || option == 8 || option == 9) {
+                    //The blocks come back on one line
+                    ResponseMessage responseObj;
+                    if (option == 7) {
+                        System.out.println("Enter block ID");
+                        responseObj = client.block(userInput.nextInt());
+                    } else if (option == 8) {
+                        System.out.println("Enter first block ID");
+                        int from = userInput.nextInt();
+                        System.out.println("Enter block ID to stop before");
+                        int to = userInput.nextInt();
+                        responseObj = client.blocks(from, to);
+                    } else {
+                        System.out.println("Enter number of blocks");
+                        responseObj = client.tail(userInput.nextInt());
+                    }
 
-                    //Read from the server
-                    String response = in.readLine();
-                    //Parse the Json format input stream to a ResponseMessage object
-                    ResponseMessage responseObj = buildResponseObj(response);
+                    System.out.println("Current size of chain: "+responseObj.size);
+                    for (BlockMessage block : responseObj.blocks) {
+                        String holds = block.transactions == null ? block.data :
+                                block.transactions.length+" transactions "+String.join(", ", block.transactions);
+                        System.out.println("Block "+block.index+" at "+block.timestamp+" holds "+holds+
+                                " (difficulty "+block.difficulty+", nonce "+block.nonce+", previous hash "+
+                                block.previousHash+")");
+                    }
+                    System.out.println();
+                }
+                else if (option == 10) {
+                    //Ask for difficulty level and record
+                    System.out.println("Enter difficulty > 0");
+                    int diffLv = userInput.nextInt();
+
+                    //Ask for transaction content and record
+                    System.out.println("Enter transaction");
+                    userInput.nextLine();
+                    String data = userInput.nextLine();
+
+                    //The server answers before the block is mined
+                    ResponseMessage responseObj = client.submit(diffLv, data);
+                    System.out.println("Transaction queued as ticket "+responseObj.ticket+"\n");
+                }
+                else if (option == 11) {
+                    System.out.println("Enter ticket");
+                    long ticket = userInput.nextLong();
+                    System.out.println("Enter milliseconds to wait for it, 0 to not wait");
+                    long timeout = userInput.nextLong();
+
+                    ResponseMessage responseObj = client.poll(ticket, timeout);
+                    if (responseObj.status == null) {
+                        System.out.println(responseObj.response+"\n");
+                    } else if (MiningTicket.DONE.equals(responseObj.status)) {
+                        System.out.println("Ticket "+responseObj.ticket+" is transaction "+responseObj.position+
+                                " of block "+responseObj.index+" with nonce "+responseObj.nonce+" and hash "+responseObj.hash+"\n");
+                    } else {
+                        System.out.println("Ticket "+responseObj.ticket+" is "+responseObj.status+"\n");
+                    }
+                }
+                else if (option == 12) {
+                    System.out.println("Enter block ID");
+                    int blockID = userInput.nextInt();
+                    System.out.println("Enter position of the transaction in the block");
+                    int position = userInput.nextInt();
+
+                    ResponseMessage responseObj = client.proof(blockID, position);
+                    if (responseObj.header == null) {
+                        System.out.println(responseObj.response+"\n");
+                    } else {
+                        System.out.println("Transaction "+responseObj.position+" of block "+responseObj.index+
+                                ": "+responseObj.transaction);
+                        System.out.println("Proof of "+responseObj.proof.length+" hashes, verified: "+
+                                verifyProof(client, responseObj)+"\n");
+                    }
+                }
+                else if (option == 13) {
+                    //Latencies per selection and counters, as one Json line
+                    System.out.println(client.metrics()+"\n");
+                }
+                else if (option == 14) {
+                    //The block being mined and how far it has got, as one Json line
+                    System.out.println(client.progress()+"\n");
+                }
+                else if (option == 15) {
+                    ResponseMessage responseObj = client.cancelMining();
 
-                    //Show the time for repairment
                     System.out.println(responseObj.response+"\n");
                 }
                 else {
@@ -204,39 +214,46 @@ public class clientTCP {
         }
         catch (Exception ex) {
             throw new RuntimeException(ex);
-        } finally {if(clientSocket != null) {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }
         }
     }
 
     /**
-     * This method convert the client request message to a Json format String for the sake of server
+     * This method checks an inclusion proof from command 12 without the rest of the block.
+     * The transaction and the proof must lead to the root in the header, or to the data of a single transaction block,
+     * and the header must hash to the returned hash with the number of leading zeroes its difficulty asks for.
+     * That hash only comes from the same answer, so it must also be the one the chain links to:
+     * the chain hash for the latest block, the previous hash of the next block otherwise.
      *
-     * @param msg
+     * @param client
+     * @param proof
      * @return
+     * @throws IOException
      */
-    private static String toJson(RequestMessage msg){
-        Gson gson = new Gson();
-        String messageToSend = gson.toJson(msg);
-        return messageToSend;
-    }
+    static boolean verifyProof(ChainClient client, ResponseMessage proof) throws IOException {
+        BlockMessage header = proof.header;
+        if (header.merkleRoot == null) {
+            if (proof.position != 0 || proof.proof.length != 0 || !String.valueOf(header.data).equals(proof.transaction)) {
+                return false;
+            }
+        } else {
+            //The root commits to the number of transactions, so the proof is checked against it
+            if (!header.merkleRoot.equals(MerkleTree.rootFromProof(proof.transaction, proof.position,
+                    header.transactionCount, proof.proof))) {
+                return false;
+            }
+        }
+        String hash = HeaderHasher.hash(header.index, header.timestamp, header.data, header.merkleRoot,
+                String.valueOf(header.previousHash), String.valueOf(header.nonce), header.difficulty).toString();
+        if (!hash.equals(proof.hash) || !hash.startsWith("0".repeat(header.difficulty))) {
+            return false;
+        }
 
-    /**
-     * This method read Json format responses from the server and parse those to ResponseMessage object
-     * to call parameters to get necessary information
-     *
-     * @param output
-     * @return
-     */
-    private static ResponseMessage buildResponseObj(String output){
-        Gson gson = new Gson();
-        ResponseMessage responseMsg = gson.fromJson(output, ResponseMessage.class);
-        return responseMsg;
+        ResponseMessage status = client.status();
+        if (header.index == status.size - 1) {
+            return hash.equals(status.chainHash);
+        }
+        ResponseMessage next = client.block(header.index + 1);
+        return next.blocks != null && next.blocks.length == 1 && hash.equals(next.blocks[0].previousHash);
     }
 
 }
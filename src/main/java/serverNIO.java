@@ -0,0 +1,428 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Nov 14, 2022
+ *
+ * This class is a non-blocking front end for the blockchain server, meant for many mostly idle connections.
+ * It speaks the same newline delimited Json protocol as serverTCP and answers with the same handleRequest().
+ *
+ * A single selector thread accepts connections and reads from all of them into one reusable direct ByteBuffer.
+ * Requests are cut out of the stream at each newline, a request longer than MAX_REQUEST_BYTES closes its connection.
+ * Complete requests go to a small worker pool, one request at a time per connection so answers stay in order.
+ * Requests that may wait for minutes, for the chain's writer, for a ticket or for a client to read a view of the chain,
+ * run on a thread of their own instead, so a few clients mining or not reading cannot hold every worker;
+ * the connection goes back to the pool once they are answered.
+ * Answers are queued on their connection and written by the selector thread when the socket is ready.
+ * A worker never waits for a client to read: once more than MAX_PENDING_BYTES of a connection's answers are unsent,
+ * its requests are left until the selector thread has sent enough of them and hands the connection back to the workers.
+ *
+ * The chain is loaded from and stored to the same block log as serverTCP, and its metrics are served the same way.
+ * The selector sees a client disconnect even while a worker mines a block for it, closing the connection
+ * cancels that mining like serverTCP does.
+ *
+ * Usage: java serverNIO [port] [worker threads] [data directory] [metrics port] [max mining seconds]
+ *        [target block milliseconds] [objects|columns]
+ */
+
+public class serverNIO {
+
+    //Longest request line accepted from a client
+    static final int MAX_REQUEST_BYTES = 64 * 1024;
+    //Size of the shared read buffer and of each chunk of an answer
+    static final int READ_BUFFER_BYTES = 64 * 1024;
+    static final int CHUNK_BYTES = 8 * 1024;
+    //Above this many unsent bytes on a connection, its next request waits and a thread writing a view of the chain waits
+    static final int MAX_PENDING_BYTES = 1024 * 1024;
+
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 6789;
+        //Requests that wait for mining run apart from the workers, see waits()
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(4, Runtime.getRuntime().availableProcessors());
+        System.out.println("Blockchain NIO server running on port " + port + " with " + workers + " workers");
+
+        BlockChain bc = serverTCP.openChain(args.length > 2 ? args[2] : serverTCP.DEFAULT_DATA_DIR,
+                serverTCP.newStore(args.length > 6 ? args[6] : "objects"));
+        serverTCP.serveMetrics(bc, args.length > 3 ? Integer.parseInt(args[3]) : serverTCP.DEFAULT_METRICS_PORT);
+        bc.setMaxMiningMillis(1000L * (args.length > 4 ? Integer.parseInt(args[4]) : serverTCP.DEFAULT_MAX_MINING_SECONDS));
+        serverTCP.retarget(bc, args.length > 5 ? Long.parseLong(args[5]) : 0);
+
+        try {
+            new serverNIO(bc, port, workers).run();
+        } catch (IOException e) {
+            System.out.println("IO Exception:" + e.getMessage());
+        }
+    }
+
+    final BlockChain bc;
+    final Selector selector;
+    final ServerSocketChannel listenChannel;
+    final ExecutorService workers;
+    //Runs the requests that may wait, see waits()
+    final ExecutorService waiters;
+    //Shared by every connection, only used by the selector thread
+    final ByteBuffer readBuffer;
+    //Connections with new answers to send, picked up by the selector thread
+    final ConcurrentLinkedQueue<Connection> toWrite;
+
+    public serverNIO(BlockChain bc, int port, int workers) throws IOException {
+        this.bc = bc;
+        this.selector = Selector.open();
+        this.listenChannel = ServerSocketChannel.open();
+        this.listenChannel.bind(new InetSocketAddress(port));
+        this.listenChannel.configureBlocking(false);
+        this.listenChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        this.workers = Executors.newFixedThreadPool(workers);
+        this.waiters = serverTCP.newConnectionExecutor();
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+        this.toWrite = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * The selector loop, runs forever
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        while (true) {
+            this.selector.select();
+
+            //Start watching for writability on connections that got new answers
+            Connection ready;
+            while ((ready = this.toWrite.poll()) != null) {
+                try {
+                    ready.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                } catch (CancelledKeyException e) {
+                    //A worker closed the connection meanwhile
+                }
+            }
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (key.isAcceptable()) {
+                        accept();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read((Connection) key.attachment());
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write((Connection) key.attachment());
+                    }
+                } catch (IOException e) {
+                    System.out.println("IO Exception:" + e.getMessage());
+                    if (key.attachment() != null) {
+                        ((Connection) key.attachment()).close();
+                    }
+                } catch (CancelledKeyException e) {
+                    //A worker closed the connection between the checks and the use of its key
+                    if (key.attachment() != null) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = this.listenChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+        this.bc.getMetrics().connectionOpened();
+    }
+
+    /**
+     * Read what is available on the connection and cut complete request lines out of it
+     * @param c
+     * @throws IOException
+     */
+    private void read(Connection c) throws IOException {
+        this.readBuffer.clear();
+        int read = c.channel.read(this.readBuffer);
+        if (read < 0) {
+            c.close();
+            return;
+        }
+        this.bc.getMetrics().bytesReceived(read);
+        this.readBuffer.flip();
+        while (this.readBuffer.hasRemaining()) {
+            byte b = this.readBuffer.get();
+            if (b == '\n') {
+                c.submit(new String(c.line, 0, c.lineLength, StandardCharsets.UTF_8));
+                c.lineLength = 0;
+            } else if (c.lineLength == MAX_REQUEST_BYTES) {
+                System.out.println("Request larger than " + MAX_REQUEST_BYTES + " bytes, closing the connection");
+                c.close();
+                return;
+            } else {
+                c.append(b);
+            }
+        }
+    }
+
+    /**
+     * Send queued answers until the socket would block
+     * @param c
+     * @throws IOException
+     */
+    private void write(Connection c) throws IOException {
+        ByteBuffer chunk;
+        while ((chunk = c.pending.peek()) != null) {
+            int written = c.channel.write(chunk);
+            c.pendingBytes.addAndGet(-written);
+            this.bc.getMetrics().bytesSent(written);
+            if (chunk.hasRemaining()) {
+                break;
+            }
+            c.pending.poll();
+        }
+        if (c.pending.isEmpty()) {
+            c.key.interestOps(SelectionKey.OP_READ);
+        }
+        synchronized (c) {
+            //Hand a connection left for its unsent answers back to the workers
+            if (c.stalled && c.pendingBytes.get() <= MAX_PENDING_BYTES) {
+                c.stalled = false;
+                this.workers.execute(c::drain);
+            }
+            //Wake up a thread waiting for room on this connection
+            c.notifyAll();
+        }
+    }
+
+    /**
+     * Whether answering msg may wait for long: adding a block, corrupting and repairing wait for the chain's writer,
+     * which may be mining for up to maxMiningMillis, polling a ticket waits up to the timeout of the request,
+     * and a view of the chain may be larger than MAX_PENDING_BYTES, so it waits for the client to read it
+     * @param msg
+     * @return
+     */
+    static boolean waits(RequestMessage msg) {
+        int selection = msg.selection;
+        return selection == 1 || selection == 3 || selection == 4 || selection == 5
+                || selection == 7 || selection == 8 || selection == 9 || (selection == 11 && msg.timeout > 0);
+    }
+
+    /**
+     * State of one client connection
+     */
+    class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        //The request line being read, only used by the selector thread
+        byte[] line = new byte[256];
+        int lineLength;
+        //Complete requests waiting for a worker, and whether a worker is on them
+        final ArrayDeque<String> requests = new ArrayDeque<>();
+        boolean busy;
+        //Left busy with requests until its unsent answers go below MAX_PENDING_BYTES, see drain()
+        boolean stalled;
+        //Answer chunks waiting to be written
+        final ConcurrentLinkedQueue<ByteBuffer> pending = new ConcurrentLinkedQueue<>();
+        final AtomicLong pendingBytes = new AtomicLong();
+        volatile boolean closed;
+        //Blocks being mined for this client
+        final serverTCP.OpenJobs jobs = new serverTCP.OpenJobs();
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void append(byte b) {
+            if (this.lineLength == this.line.length) {
+                byte[] bigger = new byte[Math.min(this.line.length * 2, MAX_REQUEST_BYTES)];
+                System.arraycopy(this.line, 0, bigger, 0, this.lineLength);
+                this.line = bigger;
+            }
+            this.line[this.lineLength++] = b;
+        }
+
+        /**
+         * Queue a request, and start a worker on this connection if none is running
+         * @param request
+         */
+        synchronized void submit(String request) {
+            this.requests.add(request);
+            if (!this.busy) {
+                this.busy = true;
+                workers.execute(this::drain);
+            }
+        }
+
+        /**
+         * Answer the queued requests in order, runs on a worker thread.
+         * A request that waits() is handed to a waiter thread, which hands the connection back to the workers
+         * once it is answered; the connection stays busy meanwhile, so the answers keep their order.
+         * So does a connection whose client does not read its answers, until the selector thread sent enough of them.
+         */
+        private void drain() {
+            while (true) {
+                String request;
+                synchronized (this) {
+                    if (!this.closed && !this.requests.isEmpty() && this.pendingBytes.get() > MAX_PENDING_BYTES) {
+                        this.stalled = true;
+                        return;
+                    }
+                    request = this.requests.poll();
+                    if (request == null || this.closed) {
+                        this.busy = false;
+                        return;
+                    }
+                }
+                RequestMessage msg;
+                try {
+                    msg = serverTCP.buildRequestObj(request);
+                } catch (RuntimeException e) {
+                    System.out.println("Exception:" + e.getMessage());
+                    close();
+                    continue;
+                }
+                if (waits(msg)) {
+                    waiters.execute(() -> {
+                        answer(msg, true);
+                        workers.execute(this::drain);
+                    });
+                    return;
+                }
+                answer(msg, false);
+            }
+        }
+
+        /**
+         * Answer one request, closing the connection if that fails
+         * @param msg
+         * @param mayWait whether the answer may wait for room on the connection, never on a worker thread
+         */
+        private void answer(RequestMessage msg, boolean mayWait) {
+            try {
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(new ChunkOutput(this, mayWait), StandardCharsets.UTF_8));
+                serverTCP.handleRequest(msg, bc, new serverTCP.JsonResponses(out), this.jobs);
+                out.flush();
+            } catch (Exception e) {
+                System.out.println("Exception:" + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Hand a chunk of answer to the selector thread.
+         * If mayWait, waits while too much of this connection's output is still unsent, so a slow reader
+         * cannot make the server buffer a whole chain view. Nothing holds a lock of the chain meanwhile.
+         * @param chunk
+         * @param mayWait
+         */
+        void enqueue(ByteBuffer chunk, boolean mayWait) {
+            if (this.closed) {
+                return;
+            }
+            this.pending.add(chunk);
+            this.pendingBytes.addAndGet(chunk.remaining());
+            toWrite.add(this);
+            selector.wakeup();
+            if (!mayWait) {
+                return;
+            }
+            synchronized (this) {
+                while (this.pendingBytes.get() > MAX_PENDING_BYTES && !this.closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        void close() {
+            //Both the selector and a worker may close a connection
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+            }
+            this.jobs.cancelAll();
+            bc.getMetrics().connectionClosed();
+            this.key.cancel();
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                // ignore exception on close
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * OutputStream cutting an answer into CHUNK_BYTES buffers for its connection
+     */
+    class ChunkOutput extends OutputStream {
+        final Connection connection;
+        //Whether full chunks wait for room on the connection, see Connection.enqueue()
+        final boolean mayWait;
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+
+        ChunkOutput(Connection connection, boolean mayWait) {
+            this.connection = connection;
+            this.mayWait = mayWait;
+        }
+
+        @Override
+        public void write(int b) {
+            if (!this.chunk.hasRemaining()) {
+                flush();
+            }
+            this.chunk.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            while (length > 0) {
+                if (!this.chunk.hasRemaining()) {
+                    flush();
+                }
+                int n = Math.min(length, this.chunk.remaining());
+                this.chunk.put(bytes, offset, n);
+                offset += n;
+                length -= n;
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (this.chunk.position() == 0) {
+                return;
+            }
+            this.chunk.flip();
+            this.connection.enqueue(this.chunk, this.mayWait);
+            this.chunk = ByteBuffer.allocate(CHUNK_BYTES);
+        }
+    }
+
+}
@@ -1,12 +1,29 @@
 import com.google.gson.Gson;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Author: Changzhou Zheng
@@ -16,9 +33,42 @@ import java.util.Scanner;
  * It will be constantly running until we manually turn it off
  * There will be 6 different categories of order in general
  * The server will first build a safe TCP tunnel with a client and listen to new orders
+ * Every client is served on its own thread, so many clients can be connected at the same time
  * This server will first read Json format RequestMessage from clients,
  * and then read specific parameters for different commands.
  * From 0 to 5, each command will trigger the server to send back different Json format Strings as responses
+ * Commands 7 to 9 read a single block, a range of blocks or the most recent blocks,
+ * they answer with the chain status and a "blocks" array
+ * Command 10 queues a transaction to be mined in the background and answers right away with a ticket,
+ * transactions waiting at the same time are mined together in one block
+ * A request may carry an "id", which comes back in its answer so a client can have many requests in flight,
+ * answers are sent in the order of the requests and every answer is a single line.
+ * Clients opening with BinaryProtocol.HELLO speak a length-prefixed binary protocol instead of Json lines,
+ * see BinaryProtocol. Both are answered by the same handleRequest().
+ * command 11 reports the status of a ticket, optionally waiting up to "timeout" milliseconds for it to finish
+ * Command 12 proves that a transaction is in a block: it answers with the transaction, the header of its block
+ * and the Merkle siblings leading to the root in that header, so the client does not need the block itself
+ * Command 13 answers with the Metrics of the server: request latencies per selection, mining and connection counters
+ * Command 14 shows the progress of the block being mined, if any: nonces tried, time spent and the expected time left
+ * Command 15 cancels the block being mined, whichever client asked for it
+ *
+ * Command 1 may carry a "timeout" in milliseconds and a "hashBudget", mining stops once either is used up
+ * and the block is not added. No block is mined for longer than the maximum mining time of the server either,
+ * repairs included. Requests are read ahead of the one being answered, so a client disconnecting
+ * while its block is mined is noticed and the mining is cancelled.
+ *
+ * Given a target block time in milliseconds, the server retargets: it ignores the difficulty asked for by commands 1
+ * and 10 and mines every block at the difficulty expected to take that long, see DifficultyRetarget.
+ *
+ * The chain is kept in a block log in the directory given as first argument (default chain-data),
+ * so a restarted server carries on with the chain it had.
+ * At startup only the blocks added after the last checkpoint are verified,
+ * and a checkpoint is written when the server is stopped.
+ * In memory the blocks are kept as objects, or as columns with "columns" as last argument, see ColumnChainStore.
+ * The same metrics can be scraped as plain text from http://127.0.0.1:[metrics port]/metrics, 0 turns that off.
+ *
+ * Usage: java serverTCP [data directory] [metrics port] [max mining seconds] [target block milliseconds]
+ *        [objects|columns]
  *
  * Important!!!
  * All sentence based Strings will be store under "response" key in each of the Json format response message
@@ -27,15 +77,24 @@ import java.util.Scanner;
 
 public class serverTCP {
 
+    static final String DEFAULT_DATA_DIR = "chain-data";
+    static final int DEFAULT_METRICS_PORT = 9789;
+    static final int DEFAULT_MAX_MINING_SECONDS = 300;
+    //Requests read ahead of the one being answered, per connection
+    static final int READ_AHEAD = 1024;
+    //Gson is thread safe, one instance serves every connection
+    static final Gson GSON = new Gson();
+
     public static void main(String[] args) {
         System.out.println("Blockchain server running");
-        //Create a socket for clients and ready to connect
-        Socket clientSocket = null;
 
-        //Creat a "Genesis" block
-        BlockChain bc = new BlockChain();
-        Block genesis = new Block(0, bc.getTime(), "Genesis", 2);
-        bc.addBlock(genesis);
+        BlockChain bc = openChain(args.length > 0 ? args[0] : DEFAULT_DATA_DIR, newStore(args.length > 4 ? args[4] : "objects"));
+        serveMetrics(bc, args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_METRICS_PORT);
+        bc.setMaxMiningMillis(1000L * (args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_MAX_MINING_SECONDS));
+        retarget(bc, args.length > 3 ? Long.parseLong(args[3]) : 0);
+
+        //Every client gets its own thread, all of them share the blockchain above
+        ExecutorService connections = newConnectionExecutor();
 
         try {
             int serverPort = 6789; // the server port we are using
@@ -43,227 +102,781 @@ public class serverTCP {
             // Create a new server socket
             ServerSocket listenSocket = new ServerSocket(serverPort);
 
-            /*
-             * Forever,
-             *   read a line from the socket
-             *   print it to the console
-             *   echo it (i.e. write it) back to the client
-             */
             while (true) {
                 /*
                  * Block waiting for a new connection request from a client.
                  * When the request is received, "accept" it, and the rest
                  * the tcp protocol handshake will then take place, making
                  * the socket ready for reading and writing.
+                 * The connection is then served on its own thread, so the next client can connect right away.
                  */
-                clientSocket = listenSocket.accept();
+                Socket clientSocket = listenSocket.accept();
                 // If we get here, then we are now connected to a client.
                 System.out.println("We have a visitor");
+                connections.submit(() -> handleClient(clientSocket, bc, connections));
+            }
 
-                // Set up "in" to read from the client socket
-                Scanner inPort;
-                inPort = new Scanner(clientSocket.getInputStream());
+        }
+        // Handle exceptions
+        catch (IOException e) {
+            System.out.println("IO Exception:" + e.getMessage());
 
-                // Set up "out" to write to the client socket
-                PrintWriter outPort;
-                outPort = new PrintWriter(new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream())));
+        }
+        finally {
+            connections.shutdown();
+        }
+    }
 
-                /*
-                 * The following loop constantly receives messages sending from the client
-                 */
-                while(inPort.hasNextLine()){
-                    //Constantly receive messages from clients
-                    String userData = inPort.nextLine();
-                    //Parse the String input to a RequestMessage Object
-                    RequestMessage msg = buildRequestObj(userData);
+    /**
+     * Open the chain stored in dataDir, and start it with a "Genesis" block if there is none yet.
+     * A loaded chain is verified from its last checkpoint on, before any client is served.
+     *
+     * @param dataDir
+     * @param store an empty store to keep the blocks in
+     * @return
+     */
+    static BlockChain openChain(String dataDir, ChainStore store){
+        BlockChain bc;
+        try {
+            bc = new BlockChain(new BlockLog(Paths.get(dataDir), store));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        //Calibrate the hash rate once, mining keeps it up to date from then on
+        bc.computeHashesPerSecond();
+        if(bc.getChainSize() == 0){
+            //Creat a "Genesis" block
+            Block genesis = new Block(0, bc.getTime(), "Genesis", 2);
+            bc.addBlock(genesis);
+        } else {
+            int trusted = bc.getVerifiedBlocks();
+            long startTime = System.currentTimeMillis();
+            String verification = bc.isChainValid();
+            long endTime = System.currentTimeMillis();
+            System.out.println("Loaded "+bc.getChainSize()+" blocks from "+dataDir+", "+trusted+
+                    " covered by the checkpoint");
+            System.out.println("Chain verification: "+verification+" in "+(endTime-startTime)+" milliseconds");
+        }
 
-                    //Find selection from the RequestMessage
-                    int userOpt = msg.selection;
+        //Snapshot on the way out, unless a block is being mined right now
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if(bc.writerLock.tryLock()){
+                try {
+                    bc.checkpoint();
+                } finally {
+                    bc.writerLock.unlock();
+                }
+            }
+        }));
+        return bc;
+    }
 
-                    String response;
+    /**
+     * @param kind "objects" or "columns"
+     * @return an empty store of that kind
+     */
+    static ChainStore newStore(String kind){
+        if(kind.equals("objects")){
+            return new ListChainStore();
+        } else if(kind.equals("columns")){
+            return new ColumnChainStore();
+        }
+        throw new IllegalArgumentException("Unknown chain store " + kind + ", expected objects or columns");
+    }
 
-                    //If the order is 0
-                    if(userOpt == 0){
-                        //compute hashes per second and store the result inside the blockchain object
-                        bc.computeHashesPerSecond();
+    /**
+     * Serve the metrics of bc as plain text on the loopback interface.
+     * The server keeps running without them if the port is taken.
+     *
+     * @param bc
+     * @param port 0 to not serve them
+     */
+    static void serveMetrics(BlockChain bc, int port){
+        if(port == 0){
+            return;
+        }
+        try {
+            bc.getMetrics().serveScrapes(port);
+            System.out.println("Metrics at http://127.0.0.1:"+port+"/metrics");
+        } catch (IOException e) {
+            System.out.println("Metrics not served on port "+port+": "+e.getMessage());
+        }
+    }
 
-                        //Call self-defined method to get response message
-                        response = getOpt0RequestStr(msg, bc);
+    /**
+     * Let bc pick the difficulty of new blocks, aiming at targetMillis of mining per block
+     *
+     * @param bc
+     * @param targetMillis 0 to keep the difficulty clients ask for
+     */
+    static void retarget(BlockChain bc, long targetMillis){
+        if(targetMillis <= 0){
+            return;
+        }
+        bc.setRetarget(new DifficultyRetarget(targetMillis, DifficultyRetarget.DEFAULT_WINDOW));
+        System.out.println("Retargeting the difficulty to "+targetMillis+" milliseconds of mining per block");
+    }
 
-                        System.out.println("Response : "+response);
+    /**
+     * Virtual threads make a thread per connection cheap even with thousands of clients.
+     * They only exist from Java 21 on while this project compiles for Java 18,
+     * so the factory is looked up at run time and a cached pool of platform threads is used before Java 21.
+     *
+     * @return an executor starting one thread per submitted connection
+     */
+    static ExecutorService newConnectionExecutor(){
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
 
-                        //Send the response message back to the client
-                        outPort.println(response);
-                        outPort.flush();
-                    }
-                    //Else if the order is 1
-                    else if(userOpt == 1){
-                        System.out.println("Adding a block");
+    /**
+     * This method serves one client until it disconnects
+     * It reads Json format RequestMessage lines from the socket and answers each of them in order
+     *
+     * @param clientSocket
+     * @param bc
+     * @param readers runs the thread reading the requests ahead
+     */
+    static void handleClient(Socket clientSocket, BlockChain bc, Executor readers){
+        Metrics metrics = bc.getMetrics();
+        metrics.connectionOpened();
+        try {
+            //A client sending BinaryProtocol.HELLO first gets the binary protocol, any other the Json lines
+            BufferedInputStream input = new BufferedInputStream(metrics.countIn(clientSocket.getInputStream()));
+            byte[] hello = BinaryProtocol.HELLO;
+            input.mark(hello.length);
+            if(input.read() == (hello[0] & 0xFF)){
+                byte[] rest = input.readNBytes(hello.length - 1);
+                if(!Arrays.equals(rest, Arrays.copyOfRange(hello, 1, hello.length))){
+                    System.out.println("Unknown protocol, closing the connection");
+                    return;
+                }
+                OutputStream output = new BufferedOutputStream(metrics.countOut(clientSocket.getOutputStream()));
+                output.write(hello);
+                output.flush();
+                new BinaryProtocol(input, output).serve(bc, readers);
+                return;
+            }
+            input.reset();
 
-                        //Start counting time
-                        long startTime = System.currentTimeMillis();
+            // Set up "in" to read from the client socket
+            Scanner inPort;
+            inPort = new Scanner(input);
 
-                        //Create a new block and read parameters from the request message as input parameters
-                        Block nextBlock = new Block(bc.getChainSize(), bc.getTime(), msg.data, msg.difficulty);
-                        bc.addBlock(nextBlock);
+            // Set up "out" to write to the client socket
+            PrintWriter outPort;
+            outPort = new PrintWriter(new BufferedWriter(new OutputStreamWriter(metrics.countOut(clientSocket.getOutputStream()))));
 
-                        //End counting time
-                        long endTime = System.currentTimeMillis();
+            /*
+             * Constantly receive messages sending from the client, parse each of them to a RequestMessage Object
+             * and answer them in order
+             */
+            serveConnection(() -> inPort.hasNextLine() ? buildRequestObj(inPort.nextLine()) : null,
+                    new JsonResponses(outPort), bc, readers);
+        }
+        // Handle exceptions
+        catch (IOException e) {
+            System.out.println("IO Exception:" + e.getMessage());
 
-                        System.out.println("Setting response to Total execution time to add this block was "+
-                                (endTime-startTime)+" milliseconds");
+        }
+        catch (RuntimeException e) {
+            System.out.println("Closing the connection after: " + e);
+        }
+        // If the client quits clean up its socket
+        finally {
+            metrics.connectionClosed();
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                // ignore exception on close
+            }
+        }
+    }
 
-                        //Generate a response message in Json format (everything is included for client to call)
-                        response = "{\"selection\":"+msg.selection+",\"size\":"+bc.getChainSize()+",\"chainHash\":\""+
-                                bc.latestHash+"\",\"totalHashes\":"+(int)(bc.getTotalExpectedHashes())+
-                                ",\"totalDiff\":"+bc.getTotalDifficulty()+",\"recentNonce\":"+
-                                bc.getLatestBlock().getNonce()+",\"diff\":"+bc.getLatestBlock().getDifficulty()+
-                                ",\"hps\":"+bc.getHashPerSecond()+",\"response\":\"Total execution time to add this block was "+
-                                (endTime-startTime)+" milliseconds\"}";
+    /**
+     * Reads the requests of one connection
+     */
+    interface RequestSource {
+        /**
+         * @return the next request, null once the client closed the connection
+         * @throws IOException
+         */
+        RequestMessage next() throws IOException;
+    }
 
-                        System.out.println("..."+response);
+    /**
+     * The blocks being mined for one connection, cancelled all at once when it closes
+     */
+    static class OpenJobs {
+        private final Set<MiningJob> jobs = ConcurrentHashMap.newKeySet();
+        private volatile boolean closed;
+
+        void add(MiningJob job){
+            this.jobs.add(job);
+            //The connection may have closed while the job was set up
+            if(this.closed){
+                job.cancel();
+            }
+        }
 
-                        //Send the response message back to the client
-                        outPort.println(response);
-                        outPort.flush();
-                    }
-                    //Else if the order is 2
-                    else if(userOpt == 2){
-                        System.out.println("Verifying entire chain");
-                        //Counting time and verify the blockchain
-                        long startTime = System.currentTimeMillis();
-                        bc.isChainValid();
-                        long endTime = System.currentTimeMillis();
-
-                        //time elapsed = endTime - startTime
-                        System.out.println("Chain verification: " + bc.isChainValid());
-                        System.out.println("Total execution time to verify the chain was " + (endTime - startTime) + " milliseconds");
-                        System.out.println("Setting response to Total execution time to verify the chain was " +
-                                (endTime - startTime) + " milliseconds");
-
-                        //Generate a response message in Json format (everything is included for client to call)
-                        response = "{\"selection\":"+msg.selection+",\"size\":"+bc.getChainSize()+",\"chainHash\":\""+
-                                bc.latestHash+"\",\"totalHashes\":"+(int)(bc.getTotalExpectedHashes())+
-                                ",\"totalDiff\":"+bc.getTotalDifficulty()+",\"recentNonce\":"+
-                                bc.getLatestBlock().getNonce()+",\"diff\":"+bc.getLatestBlock().getDifficulty()+
-                                ",\"hps\":"+bc.getHashPerSecond()+",\"response\":\"Chain verification: "+
-                                bc.isChainValid()+"\\nTotal execution time to add this block was "+
-                                (endTime-startTime)+" milliseconds\"}";
-
-                        //Send the response message back to the client
-                        outPort.println(response);
-                        outPort.flush();
-                    }
-                    //If no next line of input could be found, means client has quit
-                    //Else if the order is 3
-                    else if(userOpt == 3){
-                        System.out.println("View the Blockchain");
-                        //.toString() method directly parse a blockchain to a String
-                        //We can directly use this result as response to the client
-                        response = bc.toString();
-                        System.out.println("Setting response to "+response);
-
-                        //Send the response message back to the client
-                        outPort.println(response);
-                        outPort.flush();
-                    }
-                    //Else if the order is 4
-                    else if(userOpt == 4){
-                        System.out.println("Corrupt the Blockchain");
-
-                        //Read blockIndex parameter from the request message to change corresponding block
-                        Block corBlock = bc.chain.get(msg.blockIndex);
-                        //Reset the content of the specified block
-                        corBlock.setData(msg.data);
-                        String newMsg =  "Block "+msg.blockIndex+" now holds "+msg.data;
-                        System.out.println(newMsg);
-                        System.out.println("Setting response to "+newMsg);
-
-                        //Generate a response message in Json format (everything is included for client to call)
-                        response = "{\"selection\":"+msg.selection+",\"size\":"+bc.getChainSize()+",\"chainHash\":\""+
-                                bc.latestHash+"\",\"totalHashes\":"+(int)(bc.getTotalExpectedHashes())+
-                                ",\"totalDiff\":"+bc.getTotalDifficulty()+",\"recentNonce\":"+
-                                bc.getLatestBlock().getNonce()+",\"diff\":"+bc.getLatestBlock().getDifficulty()+
-                                ",\"hps\":"+bc.getHashPerSecond()+",\"response\":\""+newMsg+"\"}";
-
-                        //Send the response message back to the client
-                        outPort.println(response);
-                        outPort.flush();
-                    }
-                    //Else if the order is 5
-                    else if(userOpt == 5){
-                        System.out.println("Repairing the entire chain");
-                        //Counting time for repairing the block
-                        long startTime = System.currentTimeMillis();
-                        bc.repairChain();
-                        long endTime = System.currentTimeMillis();
-
-                        String newReply = "Total execution time required to repair the chain was "+
-                                (endTime - startTime)+" milliseconds";
-                        System.out.println("Setting response to "+newReply);
-
-                        //Generate a response message in Json format (everything is included for client to call)
-                        response = "{\"selection\":"+msg.selection+",\"size\":"+bc.getChainSize()+",\"chainHash\":\""+
-                                bc.latestHash+"\",\"totalHashes\":"+(int)(bc.getTotalExpectedHashes())+
-                                ",\"totalDiff\":"+bc.getTotalDifficulty()+",\"recentNonce\":"+
-                                bc.getLatestBlock().getNonce()+",\"diff\":"+bc.getLatestBlock().getDifficulty()+
-                                ",\"hps\":"+bc.getHashPerSecond()+",\"response\":\""+newReply+"\"}";
-
-                        //Send the response message back to the client
-                        outPort.println(response);
-                        outPort.flush();
+        void remove(MiningJob job){
+            this.jobs.remove(job);
+        }
+
+        void cancelAll(){
+            this.closed = true;
+            for(MiningJob job : this.jobs){
+                job.cancel();
+            }
+        }
+    }
+
+    /**
+     * This method answers the requests of one connection in order until the client closes it.
+     * A thread from readers reads the requests ahead of the one being answered, at most READ_AHEAD of them,
+     * so the end of the connection is seen even while a block is mined for it, and that mining is cancelled.
+     *
+     * @param requests
+     * @param out
+     * @param bc
+     * @param readers
+     * @throws IOException if reading or answering a request failed
+     */
+    static void serveConnection(RequestSource requests, ResponseWriter out, BlockChain bc, Executor readers)
+            throws IOException {
+        OpenJobs jobs = new OpenJobs();
+        //Requests, then the exception that ended the reading or END
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(READ_AHEAD);
+        Object end = new Object();
+        AtomicBoolean done = new AtomicBoolean();
+        readers.execute(() -> {
+            Object last = end;
+            try {
+                RequestMessage msg;
+                while((msg = requests.next()) != null){
+                    if(!put(queue, msg, done)){
+                        return;
                     }
+                }
+            } catch (IOException | RuntimeException e) {
+                last = e;
+            }
+            //Nobody is left to read what is being mined for this client
+            jobs.cancelAll();
+            put(queue, last, done);
+        });
 
+        try {
+            while(true){
+                Object next = queue.take();
+                if(next instanceof RequestMessage msg){
+                    handleRequest(msg, bc, out, jobs);
+                } else if(next instanceof IOException e){
+                    throw e;
+                } else if(next instanceof RuntimeException e){
+                    throw e;
+                } else {
+                    return;
                 }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            //Let the reader go if it is waiting for room in the queue
+            done.set(true);
+            queue.clear();
+        }
+    }
 
+    /**
+     * Wait for room in queue, unless the connection is done being answered
+     *
+     * @param queue
+     * @param item
+     * @param done
+     * @return false if item was dropped
+     */
+    private static boolean put(BlockingQueue<Object> queue, Object item, AtomicBoolean done){
+        try {
+            while(!done.get()){
+                if(queue.offer(item, 100, TimeUnit.MILLISECONDS)){
+                    return true;
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
 
+    /**
+     * This method answers one request from a client in the protocol of out,
+     * and records how long that took in the metrics of bc
+     * Commands may run at the same time for several clients, the blockchain takes care of its own locking
+     * A command that fails, such as corrupting a block that does not exist, gets an answer saying so
+     * and the connection goes on with the next request
+     *
+     * @param msg
+     * @param bc
+     * @param out
+     * @param jobs the blocks being mined for the connection of msg
+     * @throws IOException
+     */
+    static void handleRequest(RequestMessage msg, BlockChain bc, ResponseWriter out, OpenJobs jobs) throws IOException {
+        long startTime = System.nanoTime();
+        try {
+            answer(msg, bc, out, jobs);
+        } catch (RuntimeException e) {
+            System.out.println("Request "+msg.selection+" failed: "+e);
+            out.status(msg, bc, "Request failed: "+e);
+        } finally {
+            bc.getMetrics().recordRequest(msg.selection, System.nanoTime() - startTime);
         }
-        // Handle exceptions
-        catch (IOException e) {
-            System.out.println("IO Exception:" + e.getMessage());
+    }
 
+    /**
+     * This method runs the command of one request and writes its answer
+     *
+     * @param msg
+     * @param bc
+     * @param out
+     * @param jobs
+     * @throws IOException
+     */
+    private static void answer(RequestMessage msg, BlockChain bc, ResponseWriter out, OpenJobs jobs) throws IOException {
+        //Find selection from the RequestMessage
+        int userOpt = msg.selection;
+
+        //If the order is 0
+        if(userOpt == 0){
+            //Send the status of the chain back to the client
+            out.status(msg, bc, null);
         }
-        // If quitting (typically by you sending quit signal) clean up sockets
-        finally {
+        //Else if the order is 1
+        else if(userOpt == 1){
+            System.out.println("Adding a block");
+
+            //Start counting time
+            long startTime = System.currentTimeMillis();
+
+            //Create a new block and read parameters from the request message as input parameters
+            //The chain gives the block its final index when it gets added
+            Block nextBlock = new Block(bc.getChainSize(), bc.getTime(), msg.data, msg.difficulty);
+            //Mining stops at the time limit or hash budget of the request, or when this client disconnects
+            MiningJob job = bc.newMiningJob(msg.difficulty, msg.timeout, msg.hashBudget);
+            jobs.add(job);
             try {
-                if (clientSocket != null) {
-                    clientSocket.close();
+                bc.addBlock(nextBlock, job);
+            } catch (MiningJob.Stopped e) {
+                long endTime = System.currentTimeMillis();
+                String newReply = e.getMessage()+" after "+job.getTried()+" hashes and "+
+                        (endTime-startTime)+" milliseconds, the block was not added";
+                System.out.println("Setting response to "+newReply);
+                out.status(msg, bc, newReply);
+                return;
+            } finally {
+                jobs.remove(job);
+            }
+
+            //End counting time
+            long endTime = System.currentTimeMillis();
+
+            System.out.println("Setting response to Total execution time to add this block was "+
+                    (endTime-startTime)+" milliseconds");
+
+            //Send the status plus the sentence back to the client (everything is included for client to call)
+            out.status(msg, bc, "Total execution time to add this block was "+
+                    (endTime-startTime)+" milliseconds");
+        }
+        //Else if the order is 2
+        else if(userOpt == 2){
+            System.out.println("Verifying entire chain");
+            //Counting time and verify the blockchain
+            long startTime = System.currentTimeMillis();
+            String verification = bc.isChainValid();
+            long endTime = System.currentTimeMillis();
+
+            //time elapsed = endTime - startTime
+            System.out.println("Chain verification: " + verification);
+            System.out.println("Total execution time to verify the chain was " + (endTime - startTime) + " milliseconds");
+            System.out.println("Setting response to Total execution time to verify the chain was " +
+                    (endTime - startTime) + " milliseconds");
+
+            //Send the status plus the sentence back to the client (everything is included for client to call)
+            out.status(msg, bc, "Chain verification: "+
+                    verification+"\nTotal execution time to add this block was "+
+                    (endTime-startTime)+" milliseconds");
+        }
+        //If no next line of input could be found, means client has quit
+        //Else if the order is 3
+        else if(userOpt == 3){
+            System.out.println("View the Blockchain");
+            //The blockchain is written block by block straight to the client socket,
+            //so the whole chain never has to sit in memory as one String
+            System.out.println("Setting response to the blockchain of "+bc.getChainSize()+" blocks");
+
+            //Send the response message back to the client
+            out.json(bc::writeTo);
+        }
+        //Else if the order is 4
+        else if(userOpt == 4){
+            System.out.println("Corrupt the Blockchain");
+
+            //Reset the content of the block at the blockIndex parameter from the request message
+            bc.corruptBlock(msg.blockIndex, msg.data);
+            String newMsg =  "Block "+msg.blockIndex+" now holds "+msg.data;
+            System.out.println(newMsg);
+            System.out.println("Setting response to "+newMsg);
+
+            //Send the status plus the sentence back to the client (everything is included for client to call)
+            out.status(msg, bc, newMsg);
+        }
+        //Else if the order is 5
+        else if(userOpt == 5){
+            System.out.println("Repairing the entire chain");
+            //Counting time for repairing the block
+            long startTime = System.currentTimeMillis();
+            String stopped = null;
+            try {
+                bc.repairChain();
+            } catch (MiningJob.Stopped e) {
+                stopped = e.getMessage();
+            }
+            long endTime = System.currentTimeMillis();
+
+            String newReply = "Total execution time required to repair the chain was "+
+                    (endTime - startTime)+" milliseconds\nMined "+bc.getLastRepairBlocks()+
+                    " blocks again using "+bc.getLastRepairHashes()+" hashes";
+            if(stopped != null){
+                newReply += "\n"+stopped+", the chain is only partly repaired";
+            }
+            System.out.println("Setting response to "+newReply);
+
+            //Send the status plus the sentence back to the client (everything is included for client to call)
+            out.status(msg, bc, newReply);
+        }
+        //Else if the order is 7, 8 or 9
+        else if(userOpt == 7 || userOpt == 8 || userOpt == 9){
+            int size = bc.getChainSize();
+            int from;
+            int to;
+            if(userOpt == 7){
+                //A single block
+                from = msg.blockIndex;
+                to = msg.blockIndex + 1;
+            } else if(userOpt == 8){
+                //The blocks in [blockIndex, toIndex)
+                from = msg.blockIndex;
+                to = msg.toIndex;
+            } else {
+                //The count most recent blocks
+                from = size - msg.count;
+                to = size;
+            }
+            //Keep the range inside the chain
+            from = Math.max(0, Math.min(from, size));
+            to = Math.max(from, Math.min(to, size));
+            System.out.println("Viewing blocks "+from+" to "+to);
+
+            //Send the response message back to the client
+            int first = from;
+            int last = to;
+            out.json(writer -> writeBlocksResponse(msg, bc, first, last, writer));
+        }
+        //Else if the order is 10
+        else if(userOpt == 10){
+            //Queue the transaction, the client gets its ticket before the block is mined
+            MiningTicket ticket = bc.getMiningQueue().submit(msg.data, msg.difficulty);
+            System.out.println("Queued transaction as ticket "+ticket.getId());
+
+            //Send the response message back to the client
+            out.ticket(msg, ticket);
+        }
+        //Else if the order is 11
+        else if(userOpt == 11){
+            MiningTicket ticket = bc.getMiningQueue().getTicket(msg.ticket);
+            if(ticket == null){
+                //Send the response message back to the client
+                out.json(writer -> writer.write(head(msg)+",\"ticket\":"+msg.ticket+
+                        ",\"response\":\"Unknown ticket "+msg.ticket+"\"}"));
+            } else {
+                try {
+                    ticket.await(Math.max(0, msg.timeout));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
-            } catch (IOException e) {
-                // ignore exception on close
+                //Send the response message back to the client
+                out.ticket(msg, ticket);
+            }
+        }
+        //Else if the order is 12
+        else if(userOpt == 12){
+            System.out.println("Proving transaction "+msg.position+" of block "+msg.blockIndex);
+
+            //Send the response message back to the client
+            out.json(writer -> writeProofResponse(msg, bc, writer));
+        }
+        //Else if the order is 13
+        else if(userOpt == 13){
+            //Send the metrics back to the client, this request itself is counted once it is answered
+            out.json(writer -> {
+                writer.write(head(msg)+",");
+                bc.getMetrics().writeJsonFields(writer);
+                writer.write("}");
+            });
+        }
+        //Else if the order is 14
+        else if(userOpt == 14){
+            //Send the progress of the block being mined back to the client
+            MiningJob job = bc.getCurrentJob();
+            out.json(writer -> writer.write(getProgressStr(msg, job)));
+        }
+        //Else if the order is 15
+        else if(userOpt == 15){
+            MiningJob job = bc.getCurrentJob();
+            String newMsg;
+            if(job == null){
+                newMsg = "Nothing is being mined";
+            } else {
+                job.cancel();
+                newMsg = "Cancelled mining of block "+job.getIndex();
+            }
+            System.out.println(newMsg);
+
+            //Send the status plus the sentence back to the client (everything is included for client to call)
+            out.status(msg, bc, newMsg);
+        }
+    }
+
+    /**
+     * This method generates the Json format response of command 14
+     * It holds whether a block is being mined, and if so its index and difficulty, the nonces tried,
+     * the expected number of tries, the milliseconds spent and the estimated milliseconds left (-1 if unknown yet)
+     *
+     * @param msg
+     * @param job the current job, null if none
+     * @return
+     */
+    private static String getProgressStr(RequestMessage msg, MiningJob job){
+        if(job == null){
+            return head(msg)+",\"mining\":false}";
+        }
+        return head(msg)+",\"mining\":true,\"index\":"+job.getIndex()+",\"diff\":"+job.getDifficulty()+
+                ",\"tried\":"+job.getTried()+",\"expectedHashes\":"+job.getExpectedHashes()+
+                ",\"elapsedMillis\":"+job.getElapsedMillis()+
+                ",\"remainingMillis\":"+job.getEstimatedRemainingMillis()+"}";
+    }
+
+    /**
+     * The Json lines protocol: every answer is one line of Json
+     */
+    static class JsonResponses implements ResponseWriter {
+        final PrintWriter outPort;
+
+        JsonResponses(PrintWriter outPort) {
+            this.outPort = outPort;
+        }
+
+        @Override
+        public void status(RequestMessage msg, BlockChain bc, String reply) {
+            this.outPort.println(getResponseStr(msg, bc, reply));
+            this.outPort.flush();
+        }
+
+        @Override
+        public void ticket(RequestMessage msg, MiningTicket ticket) {
+            this.outPort.println(getTicketResponseStr(msg, ticket));
+            this.outPort.flush();
+        }
+
+        @Override
+        public void json(JsonBody body) throws IOException {
+            body.writeTo(new SingleLineWriter(this.outPort));
+            this.outPort.println();
+            this.outPort.flush();
+        }
+    }
+
+    /**
+     * Drops line breaks, so that every answer is exactly one line.
+     * The chain view puts each block on its own line for people reading it, and line breaks inside
+     * Json strings are always escaped, so every raw line break is only layout.
+     */
+    static class SingleLineWriter extends FilterWriter {
+
+        SingleLineWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            if(c != '\n'){
+                this.out.write(c);
             }
         }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            write(new String(chars, offset, length), 0, length);
+        }
+
+        @Override
+        public void write(String str, int offset, int length) throws IOException {
+            int end = offset + length;
+            int start = offset;
+            for(int i = offset; i < end; i++){
+                if(str.charAt(i) == '\n'){
+                    this.out.write(str, start, i - start);
+                    start = i + 1;
+                }
+            }
+            this.out.write(str, start, end - start);
+        }
+    }
+
+    /**
+     * The start of every Json answer to msg: its selection, and its id if the client gave one
+     *
+     * @param msg
+     * @return
+     */
+    static String head(RequestMessage msg){
+        return msg.id == 0 ? "{\"selection\":"+msg.selection : "{\"selection\":"+msg.selection+",\"id\":"+msg.id;
     }
 
     /**
-     * This method specifically handle command 0
-     * It generates a String response to the client by extracting parameters and variables
-     * from the request message and the blockchain itself
+     * This method generates the Json format response shared by commands 0, 1, 2, 4 and 5:
+     * the status of the blockchain plus a sentence based response if there is one.
+     * Every status field is kept up to date by the blockchain, so this does not walk the chain.
      *
      * @param msg
      * @param bc
+     * @param reply the sentence for the "response" key, null to leave it out
      * @return
      */
-    private static String getOpt0RequestStr(RequestMessage msg, BlockChain bc){
-        String response = "{\"selection\":"+msg.selection+",\"size\":"+bc.getChainSize()+",\"chainHash\":\""+
-                bc.latestHash+"\",\"totalHashes\":"+bc.getTotalExpectedHashes()+
-                ",\"totalDiff\":"+bc.getTotalDifficulty()+",\"recentNonce\":"+
-                bc.getLatestBlock().getNonce()+",\"diff\":"+bc.getLatestBlock().getDifficulty()+
-                ",\"hps\":"+bc.getHashPerSecond()+"}";
+    private static String getResponseStr(RequestMessage msg, BlockChain bc, String reply){
+        //Hold the read lock so that all fields describe the same state of the chain
+        bc.lock.readLock().lock();
+        try {
+            Block latest = bc.getLatestBlock();
+            String response = head(msg)+",\"size\":"+bc.getChainSize()+",\"chainHash\":\""+
+                    bc.latestHash+"\",\"totalHashes\":"+bc.getTotalExpectedHashes()+
+                    ",\"totalDiff\":"+bc.getTotalDifficulty()+",\"recentNonce\":"+
+                    latest.getNonce()+",\"diff\":"+latest.getDifficulty()+
+                    ",\"hps\":"+bc.getHashPerSecond();
+            if(reply != null){
+                //The reply may hold anything a client sent, such as the data of option 4
+                StringWriter escaped = new StringWriter();
+                try {
+                    Block.writeJsonString(escaped, reply);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                response += ",\"response\":"+escaped;
+            }
+            response += "}";
+
+            return response;
+        } finally {
+            bc.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This method generates the Json format response of commands 10 and 11
+     * It holds the ticket and its status, plus the index, nonce and hash of the block once it is mined
+     * and the position of the transaction inside that block
+     *
+     * @param msg
+     * @param ticket
+     * @return
+     */
+    private static String getTicketResponseStr(RequestMessage msg, MiningTicket ticket){
+        String status = ticket.getStatus();
+        String response = head(msg)+",\"ticket\":"+ticket.getId()+",\"status\":\""+status+"\"";
+        if(MiningTicket.DONE.equals(status)){
+            response += ",\"index\":"+ticket.getIndex()+",\"position\":"+ticket.getPosition()+",\"nonce\":"+ticket.getNonce()+",\"hash\":\""+ticket.getHash()+"\"";
+        }
+        response += "}";
 
         return response;
     }
 
+    /**
+     * This method handles commands 7, 8 and 9
+     * It writes the chain status and the blocks in [from, to) as one line of Json directly to out
+     *
+     * @param msg
+     * @param bc
+     * @param from
+     * @param to
+     * @param out
+     * @throws IOException
+     */
+    private static void writeBlocksResponse(RequestMessage msg, BlockChain bc, int from, int to, Writer out) throws IOException {
+        bc.lock.readLock().lock();
+        try {
+            out.write(head(msg)+",\"size\":"+bc.getChainSize()+
+                    ",\"chainHash\":\""+bc.latestHash+"\",\"blocks\":");
+            bc.writeBlocks(out, from, to);
+            out.write("}");
+        } finally {
+            bc.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This method handles command 12
+     * It writes the transaction at msg.position of block msg.blockIndex, the header of the block, its hash
+     * and the inclusion proof of the transaction as one line of Json directly to out
+     *
+     * @param msg
+     * @param bc
+     * @param out
+     * @throws IOException
+     */
+    private static void writeProofResponse(RequestMessage msg, BlockChain bc, Writer out) throws IOException {
+        bc.lock.readLock().lock();
+        try {
+            if(msg.blockIndex < 0 || msg.blockIndex >= bc.getChainSize()){
+                out.write(head(msg)+",\"response\":\"No block "+msg.blockIndex+"\"}");
+                return;
+            }
+            Block block = bc.getBlock(msg.blockIndex);
+            if(msg.position < 0 || msg.position >= block.getTransactions().size()){
+                out.write(head(msg)+",\"response\":\"No transaction "+msg.position+
+                        " in block "+msg.blockIndex+"\"}");
+                return;
+            }
+            out.write(head(msg)+",\"index\":"+msg.blockIndex+",\"position\":"+msg.position+
+                    ",\"transaction\":");
+            Block.writeJsonString(out, block.getTransactions().get(msg.position));
+            out.write(",\"hash\":\""+block.calculateHash()+"\",\"header\":");
+            block.writeHeaderTo(out);
+            out.write(",\"proof\":[");
+            String[] proof = block.proof(msg.position);
+            for(int i = 0; i < proof.length; i++){
+                out.write(i == 0 ? "\"" : ",\"");
+                out.write(proof[i]);
+                out.write("\"");
+            }
+            out.write("]}");
+        } finally {
+            bc.lock.readLock().unlock();
+        }
+    }
+
     /**
      * This method parse a Json format String to a RequestMessage object
      *
      * @param output
      * @return
      */
-    private static RequestMessage buildRequestObj(String output){
-        Gson gson = new Gson();
-        RequestMessage incommingMsg = gson.fromJson(output, RequestMessage.class);
+    static RequestMessage buildRequestObj(String output){
+        RequestMessage incommingMsg = GSON.fromJson(output, RequestMessage.class);
         return incommingMsg;
     }
 
@@ -0,0 +1,162 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.Writer;
+import java.math.BigInteger;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 17, 2022
+ *
+ * Tests of repairing a chain while it is read.
+ */
+
+public class BlockChainTest {
+
+    /**
+     * A chain of count blocks mined at difficulty 1
+     * @param count
+     * @return
+     */
+    private static BlockChain chain(int count){
+        BlockChain bc = new BlockChain();
+        for(int i = 0; i < count; i++){
+            bc.addBlock(new Block(i, bc.getTime(), "block " + i, 1));
+        }
+        return bc;
+    }
+
+    @Test
+    void aChainMinedWithTheStringHashVerifies() throws NoSuchAlgorithmException {
+        for(ChainStore store : new ChainStore[]{new ListChainStore(), new ColumnChainStore()}){
+            BlockChain bc = new BlockChain(store);
+            String previousHash = "";
+            Block previous = null;
+            for(int i = 0; i < 5; i++){
+                Block block = new Block(i, new Timestamp(1_670_000_000_000L + i), "block " + i, 2);
+                block.previousHash = previous == null ? Hash256.EMPTY : previous.calculateHash();
+                //Mined the way every block was mined before the header was hashed from bytes
+                long nonce = 0;
+                String hash;
+                while(!(hash = Block.SHA2Str(i + block.getTimestamp().toString() + block.getData() + previousHash
+                        + nonce + block.getDifficulty())).startsWith("00")){
+                    nonce++;
+                }
+                block.nonce = BigInteger.valueOf(nonce);
+                bc.chain.add(block);
+                previousHash = hash;
+                previous = block;
+            }
+            bc.latestHash = previous.calculateHash();
+
+            assertEquals(previousHash, bc.latestHash.toString());
+            assertEquals("TRUE", bc.isChainValid());
+        }
+    }
+
+    @Test
+    void repairKeepsTheTotals(){
+        BlockChain bc = chain(6);
+        int totalDifficulty = bc.getTotalDifficulty();
+        bc.corruptBlock(2, "changed");
+        bc.repairChain();
+
+        assertEquals("TRUE", bc.isChainValid());
+        assertEquals(4, bc.getLastRepairBlocks());
+        assertEquals(totalDifficulty, bc.getTotalDifficulty());
+        assertEquals("changed", bc.getBlock(2).getData());
+    }
+
+    @Test
+    void aStalledReaderDoesNotHoldTheChain() throws Exception {
+        BlockChain bc = chain(3);
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        //Stands for a client that stops reading the chain it asked for
+        Writer stalled = new Writer() {
+            @Override
+            public void write(char[] chars, int offset, int length) {
+                writing.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> view = reader.submit(() -> {
+                bc.writeTo(stalled);
+                return null;
+            });
+            assertTrue(writing.await(10, TimeUnit.SECONDS));
+            CompletableFuture.runAsync(() -> bc.addBlock(new Block(3, bc.getTime(), "block 3", 1))).get(10, TimeUnit.SECONDS);
+            assertEquals(4, (int) CompletableFuture.supplyAsync(bc::getChainSize).get(10, TimeUnit.SECONDS));
+            resume.countDown();
+            view.get(10, TimeUnit.SECONDS);
+        } finally {
+            resume.countDown();
+            reader.shutdownNow();
+        }
+    }
+
+    @Test
+    void readersGoOnWhileTheChainIsRepaired() throws Exception {
+        BlockChain bc = chain(4);
+        //Block 2 now needs far more work than the test waits for
+        Block hard = bc.getBlock(2).copy();
+        hard.setDifficulty(7);
+        bc.lock.writeLock().lock();
+        try {
+            bc.chain.set(2, hard);
+        } finally {
+            bc.lock.writeLock().unlock();
+        }
+        assertEquals(3 + 7, bc.getTotalDifficulty());
+
+        ExecutorService repairer = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> repair = repairer.submit(bc::repairChain);
+            MiningJob job;
+            while((job = bc.getCurrentJob()) == null){
+                Thread.sleep(1);
+            }
+            assertEquals(2, job.getIndex());
+
+            //Neither verifying nor the status wait for the block being mined
+            String verification = CompletableFuture.supplyAsync(bc::isChainValid).get(10, TimeUnit.SECONDS);
+            assertTrue(verification.startsWith("False\nImproper hash on node 2"), verification);
+            assertEquals(3 + 7, (int) CompletableFuture.supplyAsync(bc::getTotalDifficulty).get(10, TimeUnit.SECONDS));
+
+            job.cancel();
+            ExecutionException stopped = assertThrows(ExecutionException.class, () -> repair.get(10, TimeUnit.SECONDS));
+            assertTrue(stopped.getCause() instanceof MiningJob.Stopped);
+            assertEquals(0, bc.getLastRepairBlocks());
+        } finally {
+            repairer.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 17, 2022
+ *
+ * Tests of reopening a chain from its block log, with and without a checkpoint.
+ */
+
+public class BlockLogTest {
+
+    //Small segments, so the records of a test chain span several of them
+    private static final int SEGMENT_BYTES = 512;
+
+    /**
+     * A chain of count blocks mined at difficulty 1 into a new log in dir, checkpointed every 5 blocks
+     * @param dir
+     * @param count
+     * @return
+     * @throws IOException
+     */
+    private static BlockChain chain(Path dir, int count) throws IOException {
+        BlockChain bc = new BlockChain(new BlockLog(dir, SEGMENT_BYTES, new ListChainStore()));
+        bc.setCheckpointInterval(5);
+        for(int i = 0; i < count; i++){
+            bc.addBlock(new Block(i, bc.getTime(), "block " + i, 1));
+        }
+        return bc;
+    }
+
+    private static BlockChain reopen(Path dir, ChainStore store) throws IOException {
+        BlockChain bc = new BlockChain(new BlockLog(dir, SEGMENT_BYTES, store));
+        bc.setCheckpointInterval(5);
+        return bc;
+    }
+
+    @Test
+    void reopenFromTheCheckpointReplaysOnlyLaterRecords(@TempDir Path dir) throws IOException {
+        BlockChain written = chain(dir, 12);
+        String blocks = written.toString();
+        int totalDifficulty = written.getTotalDifficulty();
+        Hash256 latestHash = written.latestHash;
+        written.close();
+
+        for(ChainStore store : new ChainStore[]{new ListChainStore(), new ColumnChainStore()}){
+            BlockChain bc = reopen(dir, store);
+            assertTrue(bc.chain instanceof LogChainStore);
+            assertEquals(10, bc.getVerifiedBlocks());
+            assertEquals(totalDifficulty, bc.getTotalDifficulty());
+            assertEquals(latestHash, bc.latestHash);
+            assertEquals("TRUE", bc.isChainValid());
+            assertEquals(blocks, bc.toString());
+            assertEquals(3, bc.getBlock(3).getIndex());
+            bc.close();
+        }
+
+        //Without the checkpoint every record is replayed into the same chain
+        Files.delete(dir.resolve(Checkpoint.FILE_NAME));
+        BlockChain replayed = reopen(dir, new ListChainStore());
+        assertFalse(replayed.chain instanceof LogChainStore);
+        assertEquals(0, replayed.getVerifiedBlocks());
+        assertEquals(totalDifficulty, replayed.getTotalDifficulty());
+        assertEquals(blocks, replayed.toString());
+        replayed.close();
+    }
+
+    @Test
+    void changesAfterTheCheckpointAreKept(@TempDir Path dir) throws IOException {
+        BlockChain written = chain(dir, 7);
+        written.corruptBlock(2, "changed");
+        written.close();
+
+        BlockChain bc = reopen(dir, new ListChainStore());
+        assertEquals("changed", bc.getBlock(2).getData());
+        //The change touched a covered block, so nothing is trusted
+        assertEquals(0, bc.getVerifiedBlocks());
+        assertFalse("TRUE".equals(bc.isChainValid()));
+        bc.repairChain();
+        assertEquals("TRUE", bc.isChainValid());
+        bc.addBlock(new Block(7, bc.getTime(), "block 7", 1));
+        String blocks = bc.toString();
+        bc.close();
+
+        //The checkpoint at 5 blocks still covers block 2, which was repaired after it
+        BlockChain reopened = reopen(dir, new ColumnChainStore());
+        assertEquals(blocks, reopened.toString());
+        assertEquals("TRUE", reopened.isChainValid());
+        reopened.close();
+    }
+
+    @Test
+    void aDamagedRecordIsCut(@TempDir Path dir) throws IOException {
+        BlockChain written = chain(dir, 3);
+        written.close();
+
+        //Flip the last byte of the last record, the chain hash stored with block 2
+        Path segment;
+        try (var files = Files.list(dir)) {
+            segment = files.filter(p -> p.getFileName().toString().endsWith(".log")).sorted()
+                    .reduce((first, second) -> second).orElseThrow();
+        }
+        byte[] bytes = Files.readAllBytes(segment);
+        int last = bytes.length - 1;
+        while(bytes[last] == 0){
+            last--;
+        }
+        bytes[last] ^= 1;
+        Files.write(segment, bytes);
+
+        BlockChain bc = reopen(dir, new ListChainStore());
+        assertEquals(2, bc.getChainSize());
+        assertEquals("TRUE", bc.isChainValid());
+        bc.addBlock(new Block(2, bc.getTime(), "block 2 again", 1));
+        bc.close();
+
+        BlockChain reopened = reopen(dir, new ListChainStore());
+        assertEquals(3, reopened.getChainSize());
+        assertEquals("block 2 again", reopened.getBlock(2).getData());
+        reopened.close();
+    }
+
+    @Test
+    void aDamagedRecordDropsTheLaterSegments(@TempDir Path dir) throws IOException {
+        BlockChain written = chain(dir, 12);
+        written.close();
+        Files.delete(dir.resolve(Checkpoint.FILE_NAME));
+        assertTrue(Files.exists(dir.resolve("blocks-00002.log")));
+
+        //Flip a byte in the payload of the second record of the first segment
+        Path first = dir.resolve("blocks-00000.log");
+        byte[] bytes = Files.readAllBytes(first);
+        int second = BlockLog.RECORD_HEADER_BYTES + ByteBuffer.wrap(bytes).getInt(0);
+        bytes[second + BlockLog.RECORD_HEADER_BYTES + 10] ^= 1;
+        Files.write(first, bytes);
+
+        BlockLog log = new BlockLog(dir, SEGMENT_BYTES, new ListChainStore());
+        BlockChain bc = new BlockChain(log);
+        assertEquals(1, bc.getChainSize());
+        assertEquals(1, log.getRecordCount());
+        assertFalse(Files.exists(dir.resolve("blocks-00001.log")));
+        assertEquals("TRUE", bc.isChainValid());
+        bc.close();
+    }
+
+}
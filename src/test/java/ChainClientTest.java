@@ -0,0 +1,155 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 17, 2022
+ *
+ * Tests of ChainClient against serverTCP over a loopback socket, and against a server writing broken answers.
+ */
+
+public class ChainClientTest {
+
+    private ServerSocket listener;
+    private final ExecutorService threads = serverTCP.newConnectionExecutor();
+
+    @AfterEach
+    void stop() throws IOException {
+        if(this.listener != null){
+            this.listener.close();
+        }
+        this.threads.shutdownNow();
+    }
+
+    /**
+     * Serve bc to every client of a new listener
+     * @param bc
+     * @return its port
+     */
+    private int serve(BlockChain bc) throws IOException {
+        this.listener = new ServerSocket(0);
+        this.threads.execute(() -> {
+            while(true){
+                Socket socket;
+                try {
+                    socket = this.listener.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                this.threads.execute(() -> serverTCP.handleClient(socket, bc, this.threads));
+            }
+        });
+        return this.listener.getLocalPort();
+    }
+
+    @Test
+    void dataWithQuotesAndLineBreaksComesBackUnchanged() throws Exception {
+        BlockChain bc = new BlockChain();
+        bc.addBlock(new Block(0, bc.getTime(), "Genesis", 1));
+        bc.addBlock(new Block(1, bc.getTime(), "first", 1));
+        String data = "say \"hi\"\nthen a \\ and a\ttab";
+
+        try (ChainClient client = new ChainClient("localhost", serve(bc))) {
+            ResponseMessage corrupted = client.corrupt(1, data);
+            assertEquals("Block 1 now holds " + data, corrupted.response);
+
+            //The connection still answers, and the block holds the data as sent
+            ResponseMessage block = client.block(1);
+            assertEquals(data, block.blocks[0].data);
+            //Line breaks of the server's own replies come back as line breaks too
+            ResponseMessage repaired = client.repair();
+            assertTrue(repaired.response.contains(" milliseconds\nMined 1 blocks again"), repaired.response);
+        }
+    }
+
+    @Test
+    void failedCommandIsAnsweredAndConnectionStaysOpen() throws Exception {
+        BlockChain bc = new BlockChain();
+        bc.addBlock(new Block(0, bc.getTime(), "Genesis", 1));
+
+        try (ChainClient client = new ChainClient("localhost", serve(bc))) {
+            ResponseMessage failed = client.corrupt(999, "x");
+            assertTrue(failed.response.startsWith("Request failed: "), failed.response);
+            assertEquals(1, client.status().size);
+        }
+    }
+
+    @Test
+    void proofsAreCheckedAgainstTheChain() throws Exception {
+        BlockChain bc = new BlockChain();
+        bc.addBlock(new Block(0, bc.getTime(), "Genesis", 1));
+        bc.addBlock(new Block(1, bc.getTime(), List.of("a", "b", "c"), 1));
+        String root = new MerkleTree(List.of("x", "y")).getRoot();
+        bc.addBlock(new Block(2, bc.getTime(), root, 1));
+
+        try (ChainClient client = new ChainClient("localhost", serve(bc))) {
+            for(int position = 0; position < 3; position++){
+                assertTrue(clientTCP.verifyProof(client, client.proof(1, position)));
+            }
+            assertTrue(clientTCP.verifyProof(client, client.proof(2, 0)));
+
+            //A header the chain does not link to fails, even with a matching hash in the same answer
+            ResponseMessage forged = client.proof(1, 0);
+            forged.header.nonce++;
+            forged.hash = HeaderHasher.hash(forged.header.index, forged.header.timestamp, null, forged.header.merkleRoot,
+                    forged.header.previousHash, String.valueOf(forged.header.nonce), forged.header.difficulty).toString();
+            assertFalse(clientTCP.verifyProof(client, forged));
+
+            //Data that looks like a Merkle root does not make a single transaction block a batch
+            ResponseMessage single = client.proof(2, 0);
+            single.header.merkleRoot = single.header.data;
+            single.header.transactionCount = 2;
+            single.transaction = "x";
+            single.proof = new MerkleTree(List.of("x", "y")).proof(0);
+            assertFalse(clientTCP.verifyProof(client, single));
+        }
+    }
+
+    @Test
+    void malformedAnswerOnlyFailsItsRequest() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        this.listener = server;
+        this.threads.execute(() -> {
+            try (Socket socket = server.accept();
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+                in.readLine();
+                in.readLine();
+                //An unescaped quote in the first answer, the second one is fine
+                out.println("{\"selection\":0,\"id\":1,\"response\":\"a \"quoted\" word\"}");
+                out.println("{\"selection\":0,\"id\":2,\"response\":\"fine\"}");
+                in.readLine();
+            } catch (IOException e) {
+                //The test ended
+            }
+        });
+
+        try (ChainClient client = new ChainClient("localhost", server.getLocalPort())) {
+            CompletableFuture<ResponseMessage> broken = client.statusAsync();
+            CompletableFuture<ResponseMessage> fine = client.statusAsync();
+
+            ExecutionException failure = assertThrows(ExecutionException.class, () -> broken.get(10, TimeUnit.SECONDS));
+            assertTrue(failure.getCause() instanceof IOException);
+            assertEquals("fine", fine.get(10, TimeUnit.SECONDS).response);
+        }
+    }
+
+}
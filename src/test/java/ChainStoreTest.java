@@ -0,0 +1,129 @@
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 17, 2022
+ *
+ * Tests that a ColumnChainStore gives the same view of a chain as a ListChainStore,
+ * and that a block taken out of either one only changes the chain once it is stored again.
+ */
+
+public class ChainStoreTest {
+
+    /**
+     * A chain of single transaction blocks, a batch block, a block without data
+     * and a block with a timestamp finer than a millisecond, mined at difficulty 1
+     * @param store
+     * @return
+     */
+    private static BlockChain chain(ChainStore store){
+        BlockChain bc = new BlockChain(store);
+        bc.addBlock(new Block(0, bc.getTime(), "Genesis", 1));
+        for(int i = 1; i < 20; i++){
+            bc.addBlock(new Block(i, bc.getTime(), "block \"" + i + "\" é", 1 + i % 2));
+        }
+        bc.addBlock(new Block(20, bc.getTime(), List.of("a", "b", "c"), 1));
+        bc.addBlock(new Block(21, bc.getTime(), (String) null, 1));
+        Timestamp precise = bc.getTime();
+        precise.setNanos(123_456_789);
+        bc.addBlock(new Block(22, precise, "precise", 1));
+        return bc;
+    }
+
+    @Test
+    void columnsGiveTheSameChainAsObjects(){
+        BlockChain objects = chain(new ListChainStore());
+        ColumnChainStore columns = new ColumnChainStore();
+        ListChainStore list = new ListChainStore();
+        for(int i = 0; i < objects.getChainSize(); i++){
+            Block block = objects.getBlock(i);
+            columns.add(block);
+            list.add(block);
+        }
+
+        assertEquals(list.size(), columns.size());
+        for(int i = 0; i < list.size(); i++){
+            Block expected = list.get(i);
+            Block view = columns.get(i);
+            assertEquals(expected.getData(), view.getData());
+            assertEquals(expected.getTimestamp(), view.getTimestamp());
+            assertEquals(expected.getNonce(), view.getNonce());
+            assertEquals(expected.transactions, view.transactions);
+            assertEquals(expected.getMerkleRoot(), view.getMerkleRoot());
+            assertEquals(list.difficulty(i), columns.difficulty(i));
+            assertEquals(list.previousHash(i), columns.previousHash(i));
+            assertEquals(list.hash(i), columns.hash(i));
+
+            //Forget the memoized hash, so it is hashed again from the columns
+            view.hash = null;
+            columns.set(i, view);
+            assertEquals(list.hash(i), columns.hash(i), "hash of block " + i);
+        }
+        assertEquals(Hash256.EMPTY, columns.previousHash(0));
+    }
+
+    @Test
+    void bigNoncesAreKept(){
+        ColumnChainStore columns = new ColumnChainStore();
+        Block block = new Block(0, new Timestamp(0), "x", 1);
+        block.previousHash = Hash256.EMPTY;
+        block.nonce = BigInteger.ONE.shiftLeft(70);
+        columns.add(block);
+        assertEquals(block.nonce, columns.get(0).getNonce());
+        assertEquals(block.calculateHash(), columns.hash(0));
+    }
+
+    @Test
+    void changedViewOnlyCountsOnceStored(){
+        BlockChain bc = chain(new ColumnChainStore());
+        int totalDifficulty = bc.getTotalDifficulty();
+        BigInteger totalHashes = bc.getTotalExpectedHashes();
+        assertEquals("TRUE", bc.isChainValid());
+
+        //A view changed and dropped leaves the chain as it was
+        Block view = bc.getBlock(3);
+        int difficulty = view.getDifficulty();
+        view.setDifficulty(difficulty + 3);
+        assertEquals(totalDifficulty, bc.getTotalDifficulty());
+        assertEquals(totalHashes, bc.getTotalExpectedHashes());
+        assertEquals(difficulty, bc.getBlock(3).getDifficulty());
+        assertEquals("TRUE", bc.isChainValid());
+
+        //Stored, the change moves the totals and breaks the chain
+        bc.lock.writeLock().lock();
+        try {
+            bc.chain.set(3, view);
+        } finally {
+            bc.lock.writeLock().unlock();
+        }
+        assertEquals(totalDifficulty + 3, bc.getTotalDifficulty());
+        assertEquals(totalHashes.subtract(BlockChain.expectedHashes(difficulty))
+                .add(BlockChain.expectedHashes(difficulty + 3)), bc.getTotalExpectedHashes());
+        assertEquals(difficulty + 3, bc.getBlock(3).getDifficulty());
+        assertEquals("FALSE", bc.isChainValid().substring(0, 5).toUpperCase());
+    }
+
+    @Test
+    void objectsAndColumnsAgreeAfterCorruptAndRepair(){
+        for(ChainStore store : new ChainStore[]{new ListChainStore(), new ColumnChainStore()}){
+            BlockChain bc = chain(store);
+            int totalDifficulty = bc.getTotalDifficulty();
+            bc.corruptBlock(5, "changed");
+            assertEquals("changed", bc.getBlock(5).getData());
+            assertEquals(totalDifficulty, bc.getTotalDifficulty());
+            assertEquals("FALSE", bc.isChainValid().substring(0, 5).toUpperCase());
+            bc.repairChain();
+            assertEquals("TRUE", bc.isChainValid());
+            assertEquals(totalDifficulty, bc.getTotalDifficulty());
+            assertNull(bc.getCurrentJob());
+        }
+    }
+
+}
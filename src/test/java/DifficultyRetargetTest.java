@@ -0,0 +1,83 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 17, 2022
+ *
+ * Tests of the difficulty picked by DifficultyRetarget.
+ */
+
+public class DifficultyRetargetTest {
+
+    private static final long MILLIS = 1_000_000L;
+
+    @Test
+    void withoutSamplesTheLatestDifficultyIsKept(){
+        DifficultyRetarget retarget = new DifficultyRetarget(1_000, DifficultyRetarget.DEFAULT_WINDOW);
+        assertEquals(5, retarget.nextDifficulty(5));
+        assertEquals(DifficultyRetarget.MIN_DIFFICULTY, retarget.nextDifficulty(0));
+        assertEquals(DifficultyRetarget.MAX_DIFFICULTY, retarget.nextDifficulty(40));
+    }
+
+    @Test
+    void aBlockOnTargetKeepsItsDifficulty(){
+        //16^3 hashes in 100 ms, so difficulty 3 takes the 100 ms aimed at
+        DifficultyRetarget retarget = new DifficultyRetarget(100, 4);
+        for(int i = 0; i < 4; i++){
+            retarget.recordBlock(3, 100 * MILLIS);
+        }
+        assertEquals(3, retarget.nextDifficulty(3));
+    }
+
+    @Test
+    void theDifficultyMovesOneStepAtATime(){
+        DifficultyRetarget retarget = new DifficultyRetarget(256, 4);
+        //16^2 hashes a millisecond, so 16^4 hashes in the target time
+        retarget.recordBlock(2, MILLIS);
+        assertEquals(3, retarget.nextDifficulty(2));
+        assertEquals(4, retarget.nextDifficulty(4));
+        assertEquals(5, retarget.nextDifficulty(6));
+        assertEquals(DifficultyRetarget.MAX_DIFFICULTY - 1, retarget.nextDifficulty(DifficultyRetarget.MAX_DIFFICULTY));
+    }
+
+    @Test
+    void stoppedProofsOfWorkBringTheDifficultyDown(){
+        DifficultyRetarget retarget = new DifficultyRetarget(100, 4);
+        //10 hashes a second, a single hash in the target time is below any difficulty
+        retarget.recordStopped(10, 1_000 * MILLIS);
+        assertEquals(4, retarget.nextDifficulty(5));
+        assertEquals(1, retarget.nextDifficulty(2));
+        assertEquals(DifficultyRetarget.MIN_DIFFICULTY, retarget.nextDifficulty(DifficultyRetarget.MIN_DIFFICULTY));
+    }
+
+    @Test
+    void aFastMinerStaysAtTheMaximum(){
+        DifficultyRetarget retarget = new DifficultyRetarget(1_000, 4);
+        retarget.recordBlock(DifficultyRetarget.MAX_DIFFICULTY, 1);
+        assertEquals(DifficultyRetarget.MAX_DIFFICULTY, retarget.nextDifficulty(DifficultyRetarget.MAX_DIFFICULTY));
+        assertEquals(DifficultyRetarget.MAX_DIFFICULTY, retarget.nextDifficulty(Integer.MAX_VALUE));
+    }
+
+    @Test
+    void onlyTheWindowCounts(){
+        DifficultyRetarget retarget = new DifficultyRetarget(100, 2);
+        //1000 hashes a second, 100 hashes in the target time is closest to difficulty 2
+        retarget.recordStopped(1_000, 1_000 * MILLIS);
+        retarget.recordStopped(1_000, 1_000 * MILLIS);
+        assertEquals(3, retarget.nextDifficulty(4));
+        //Two blocks on target push the slow samples out
+        retarget.recordBlock(4, 100 * MILLIS);
+        retarget.recordBlock(4, 100 * MILLIS);
+        assertEquals(4, retarget.nextDifficulty(4));
+    }
+
+    @Test
+    void targetAndWindowMustBePositive(){
+        assertThrows(IllegalArgumentException.class, () -> new DifficultyRetarget(0, 4));
+        assertThrows(IllegalArgumentException.class, () -> new DifficultyRetarget(100, 0));
+    }
+
+}
@@ -0,0 +1,150 @@
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 17, 2022
+ *
+ * Tests that hashing headers from bytes gives the hash the appended String always had,
+ * so chains mined before HeaderHasher still verify.
+ */
+
+public class HeaderHasherTest {
+
+    /**
+     * SHA2Str() of the header String of a single transaction block, the way the hash was always computed
+     * @param block
+     * @return
+     * @throws NoSuchAlgorithmException
+     */
+    private static String stringHash(Block block) throws NoSuchAlgorithmException {
+        return Block.SHA2Str(block.getIndex() + block.getTimestamp().toString() + block.getData() + block.previousHash
+                + block.getNonce() + block.getDifficulty());
+    }
+
+    /**
+     * The hash of a batch header: the header String with the Merkle root in place of data,
+     * behind the byte 0xFF that no String encodes to
+     * @param block
+     * @return
+     * @throws NoSuchAlgorithmException
+     */
+    private static String batchHash(Block block) throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update((block.getIndex() + block.getTimestamp().toString()).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0xFF);
+        digest.update((block.merkleRoot + block.previousHash + block.getNonce() + block.getDifficulty()).getBytes(StandardCharsets.UTF_8));
+        return Hash256.fromBytes(digest.digest()).toString();
+    }
+
+    private static Block block(int index, Hash256 previousHash, BigInteger nonce){
+        Timestamp timestamp = new Timestamp(1_670_000_000_000L + index);
+        Block block = new Block(index, timestamp, "Alice pays Bob " + index, 2);
+        block.previousHash = previousHash;
+        block.nonce = nonce;
+        return block;
+    }
+
+    @Test
+    void calculateHashMatchesTheStringHash() throws NoSuchAlgorithmException {
+        Block genesis = block(0, Hash256.EMPTY, BigInteger.valueOf(17));
+        Block next = block(1, genesis.calculateHash(), BigInteger.valueOf(123_456_789));
+        Block bigNonce = block(2, next.calculateHash(), BigInteger.ONE.shiftLeft(80));
+        Block fraction = block(3, bigNonce.calculateHash(), BigInteger.ZERO);
+        fraction.timestamp.setNanos(123_456_789);
+        Block batch = new Block(4, new Timestamp(1_670_000_000_004L), List.of("tx 1", "tx 2", "tx 3"), 3);
+        batch.previousHash = fraction.calculateHash();
+        batch.nonce = BigInteger.valueOf(42);
+
+        for(Block block : List.of(genesis, next, bigNonce, fraction)){
+            assertEquals(stringHash(block), block.calculateHash().toString());
+        }
+        assertEquals(batchHash(batch), batch.calculateHash().toString());
+    }
+
+    @Test
+    void dataCannotPassForABatch() throws NoSuchAlgorithmException {
+        Block batch = new Block(1, new Timestamp(1_670_000_000_001L), List.of("tx 1", "tx 2"), 2);
+        batch.previousHash = Hash256.EMPTY;
+        batch.nonce = BigInteger.valueOf(7);
+        Block single = block(1, Hash256.EMPTY, BigInteger.valueOf(7));
+        single.timestamp = batch.timestamp;
+        single.data = batch.merkleRoot;
+
+        assertEquals(stringHash(single), single.calculateHash().toString());
+        assertFalse(single.calculateHash().equals(batch.calculateHash()));
+    }
+
+    @Test
+    void tryNonceMatchesTheStringHash() throws NoSuchAlgorithmException {
+        Block block = block(1, Hash256.fromBytes(new byte[32]), BigInteger.ZERO);
+        HeaderHasher hasher = new HeaderHasher(block);
+        HeaderHasher.Scratch scratch = HeaderHasher.scratch();
+        for(long nonce : new long[]{0, 9, 10, 4_711, Long.MAX_VALUE}){
+            block.nonce = BigInteger.valueOf(nonce);
+            String expected = stringHash(block);
+            boolean found = hasher.tryNonce(nonce, scratch);
+            assertEquals(expected, Hash256.fromBytes(scratch.hash).toString());
+            assertEquals(expected.startsWith("00"), found);
+        }
+    }
+
+    @Test
+    void fieldsGiveTheSamePrefixAsTheBlock(){
+        Block single = block(5, Hash256.fromBytes(new byte[32]), BigInteger.valueOf(99));
+        Block batch = new Block(6, new Timestamp(1_670_000_000_006L), List.of("a", "b"), 2);
+        batch.previousHash = single.calculateHash();
+        batch.nonce = BigInteger.valueOf(99);
+        HeaderHasher.Scratch scratch = HeaderHasher.scratch();
+        byte[] nonce = "99".getBytes(StandardCharsets.US_ASCII);
+
+        for(Block block : List.of(single, batch)){
+            boolean isBatch = block.merkleRoot != null;
+            byte[] data = (isBatch ? block.merkleRoot : block.data).getBytes();
+            new HeaderHasher(block.index, block.timestamp.toString(), isBatch, data, 0, data.length,
+                    block.previousHash.toString(), block.difficulty).hash(nonce, 0, nonce.length, scratch);
+            assertEquals(block.calculateHash(), Hash256.fromBytes(scratch.hash));
+        }
+    }
+
+    @Test
+    void hash256KeepsTheStringFormat() throws NoSuchAlgorithmException {
+        Block block = block(1, Hash256.EMPTY, BigInteger.valueOf(3));
+        Hash256 hash = block.calculateHash();
+        String hex = stringHash(block);
+
+        assertEquals(hex, hash.toString());
+        assertEquals(hash, Hash256.fromBytes(hash.toBytes()));
+        assertEquals(hash.hashCode(), Hash256.fromBytes(hash.toBytes()).hashCode());
+        int zeros = 0;
+        while(zeros < hex.length() && hex.charAt(zeros) == '0'){
+            zeros++;
+        }
+        assertEquals(zeros, hash.leadingZeroDigits());
+        assertTrue(hash.hasLeadingZeros(zeros));
+        assertFalse(hash.hasLeadingZeros(zeros + 1));
+
+        //Only the upper nibble of a byte is printed
+        byte[] bytes = new byte[32];
+        bytes[0] = 0x0F;
+        bytes[1] = 0x10;
+        Hash256 lowNibbles = Hash256.fromBytes(bytes);
+        assertEquals(1, lowNibbles.leadingZeroDigits());
+        assertTrue(lowNibbles.toString().startsWith("01"));
+
+        assertEquals("", Hash256.EMPTY.toString());
+        assertFalse(Hash256.EMPTY.equals(Hash256.fromBytes(new byte[32])));
+        assertEquals(0, Hash256.EMPTY.leadingZeroDigits());
+    }
+
+}
@@ -0,0 +1,78 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 17, 2022
+ *
+ * Tests of the percentiles of a LatencyHistogram.
+ */
+
+public class LatencyHistogramTest {
+
+    @Test
+    void smallValuesAreExact(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 1; i <= 50; i++){
+            histogram.record(i);
+        }
+        assertEquals(0, new LatencyHistogram().percentile(0.5));
+        assertEquals(1, histogram.percentile(0));
+        assertEquals(25, histogram.percentile(0.5));
+        assertEquals(50, histogram.percentile(0.99));
+        assertEquals(50, histogram.percentile(1));
+        assertEquals(25.5, histogram.getMean());
+    }
+
+    @Test
+    void largeValuesAreAtMostOneSubBucketAbove(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(long i = 1; i <= 100_000; i++){
+            histogram.record(i * 1_000);
+        }
+        for(double fraction : new double[]{0.5, 0.9, 0.99, 0.999}){
+            long exact = (long) Math.ceil(fraction * 100_000) * 1_000;
+            long reported = histogram.percentile(fraction);
+            assertTrue(reported >= exact, fraction + ": " + reported);
+            assertTrue(reported <= exact + exact / LatencyHistogram.SUB_BUCKETS, fraction + ": " + reported);
+        }
+        //The top bucket reports the largest value, not the end of its range
+        assertEquals(100_000_000L, histogram.percentile(1));
+        assertEquals(100_000_000L, histogram.getMax());
+    }
+
+    @Test
+    void everyValueFallsInTheBucketItReports(){
+        for(long value : new long[]{0, 63, 64, 65, 1_000, 123_456_789, Long.MAX_VALUE}){
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(bucket < LatencyHistogram.BUCKETS, String.valueOf(value));
+            assertTrue(LatencyHistogram.highestValueOf(bucket) >= value, String.valueOf(value));
+            if(bucket > 0){
+                assertTrue(LatencyHistogram.highestValueOf(bucket - 1) < value, String.valueOf(value));
+            }
+        }
+    }
+
+    @Test
+    void mergedHistogramsCountBoth(){
+        LatencyHistogram fast = new LatencyHistogram();
+        LatencyHistogram slow = new LatencyHistogram();
+        for(int i = 0; i < 90; i++){
+            fast.record(10);
+        }
+        for(int i = 0; i < 10; i++){
+            slow.record(1_000_000);
+        }
+        slow.record(-5);
+        fast.add(slow);
+
+        assertEquals(101, fast.getCount());
+        assertEquals(10 * 90 + 10 * 1_000_000L, fast.getTotal());
+        assertEquals(10, fast.percentile(0.9));
+        assertTrue(fast.percentile(0.95) >= 1_000_000);
+        assertEquals(1_000_000, fast.getMax());
+    }
+
+}
@@ -0,0 +1,72 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 17, 2022
+ *
+ * Tests of Merkle roots and inclusion proofs.
+ */
+
+public class MerkleTreeTest {
+
+    private static List<String> transactions(int count){
+        List<String> transactions = new ArrayList<>();
+        for(int i = 0; i < count; i++){
+            transactions.add("tx " + i);
+        }
+        return transactions;
+    }
+
+    @Test
+    void everyProofLeadsToTheRoot(){
+        for(int count = 1; count <= 17; count++){
+            MerkleTree tree = new MerkleTree(transactions(count));
+            for(int position = 0; position < count; position++){
+                String[] proof = tree.proof(position);
+                assertEquals(tree.getRoot(), MerkleTree.rootFromProof("tx " + position, position, count, proof),
+                        "transaction " + position + " of " + count);
+            }
+        }
+    }
+
+    @Test
+    void wrongTransactionPositionOrCountFails(){
+        MerkleTree tree = new MerkleTree(transactions(5));
+        String[] proof = tree.proof(2);
+        assertNotEquals(tree.getRoot(), MerkleTree.rootFromProof("tx 3", 2, 5, proof));
+        assertNotEquals(tree.getRoot(), MerkleTree.rootFromProof("tx 2", 3, 5, proof));
+        assertNotEquals(tree.getRoot(), MerkleTree.rootFromProof("tx 2", 2, 6, proof));
+        assertNull(MerkleTree.rootFromProof("tx 2", 5, 5, proof));
+        assertNull(MerkleTree.rootFromProof("tx 2", 2, 5, new String[]{proof[0], proof[1]}));
+    }
+
+    @Test
+    void duplicatedLastTransactionGivesAnotherRoot(){
+        List<String> three = transactions(3);
+        List<String> four = new ArrayList<>(three);
+        four.add(three.get(2));
+        MerkleTree odd = new MerkleTree(three);
+        MerkleTree duplicated = new MerkleTree(four);
+        assertNotEquals(odd.getRoot(), duplicated.getRoot());
+
+        //The proof of the copy in the four leaf tree does not pass for a fourth transaction of the odd tree
+        assertNotEquals(odd.getRoot(), MerkleTree.rootFromProof("tx 2", 3, 4, duplicated.proof(3)));
+        assertNull(MerkleTree.rootFromProof("tx 2", 3, 3, duplicated.proof(3)));
+    }
+
+    @Test
+    void lastNodeOfAnOddLevelMustBeItsOwnSibling(){
+        MerkleTree tree = new MerkleTree(transactions(3));
+        String[] proof = tree.proof(2);
+        String[] forged = {tree.proof(0)[0], proof[1]};
+        assertNull(MerkleTree.rootFromProof("tx 2", 2, 3, forged));
+    }
+
+}
@@ -0,0 +1,33 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 17, 2022
+ *
+ * Tests of batching queued transactions.
+ */
+
+public class MiningQueueTest {
+
+    @Test
+    void aMissingTransactionDoesNotFailItsBatch() throws InterruptedException {
+        BlockChain bc = new BlockChain();
+        bc.addBlock(new Block(0, bc.getTime(), "Genesis", 1));
+        MiningQueue queue = bc.getMiningQueue();
+
+        MiningTicket first = queue.submit("first", 1);
+        assertThrows(IllegalArgumentException.class, () -> queue.submit(null, 1));
+        MiningTicket second = queue.submit("second", 1);
+        assertTrue(first.await(10_000));
+        assertTrue(second.await(10_000));
+
+        assertEquals(MiningTicket.DONE, first.getStatus());
+        assertEquals(MiningTicket.DONE, second.getStatus());
+        assertEquals("TRUE", bc.isChainValid());
+    }
+
+}
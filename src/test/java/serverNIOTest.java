@@ -0,0 +1,104 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Author: Changzhou Zheng
+ * Date: Dec 17, 2022
+ *
+ * Tests that a serverNIO with a single worker keeps answering while blocks are mined for other clients,
+ * or while a client does not read its answers.
+ */
+
+public class serverNIOTest {
+
+    /**
+     * Start a serverNIO with a single worker for bc on a free port
+     * @param bc
+     * @return the port
+     * @throws IOException
+     */
+    private static int start(BlockChain bc) throws IOException {
+        serverNIO server = new serverNIO(bc, 0, 1);
+        Thread selector = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                //The test ended
+            }
+        });
+        selector.setDaemon(true);
+        selector.start();
+        return ((InetSocketAddress) server.listenChannel.getLocalAddress()).getPort();
+    }
+
+    @Test
+    void miningDoesNotHoldTheWorkers() throws Exception {
+        BlockChain bc = new BlockChain();
+        bc.addBlock(new Block(0, bc.getTime(), "Genesis", 1));
+        int port = start(bc);
+
+        try (ChainClient miner = new ChainClient("localhost", port);
+             ChainClient waiter = new ChainClient("localhost", port);
+             ChainClient reader = new ChainClient("localhost", port)) {
+            //Far more work than the test waits for, the block is never found
+            CompletableFuture<ResponseMessage> mined = miner.addBlockAsync(8, "hard", 60_000, 0);
+            while(bc.getCurrentJob() == null){
+                Thread.sleep(1);
+            }
+            //Waits for the chain's writer
+            CompletableFuture<ResponseMessage> queued = waiter.addBlockAsync(1, "easy", 60_000, 0);
+
+            assertEquals(1, reader.statusAsync().get(10, TimeUnit.SECONDS).size);
+            assertTrue(reader.verifyAsync().get(10, TimeUnit.SECONDS).response.startsWith("Chain verification: TRUE"));
+
+            bc.getCurrentJob().cancel();
+            assertTrue(mined.get(10, TimeUnit.SECONDS).response.startsWith("Mining stopped"));
+            assertEquals(2, queued.get(10, TimeUnit.SECONDS).size);
+        }
+    }
+
+    @Test
+    void aClientNotReadingDoesNotHoldTheWorkers() throws Exception {
+        //Far more Json than the server buffers for a connection and the sockets hold
+        BlockChain bc = new BlockChain();
+        int size = 40_000;
+        Hash256 parent = Hash256.EMPTY;
+        for(int i = 0; i < size; i++){
+            Block block = new Block(i, new Timestamp(1_670_000_000_000L + i), "transaction " + i, 0);
+            block.previousHash = parent;
+            block.nonce = BigInteger.ZERO;
+            parent = block.calculateHash();
+            bc.chain.add(block);
+        }
+        bc.latestHash = parent;
+        int port = start(bc);
+
+        try (Socket stalled = new Socket("localhost", port);
+             ChainClient reader = new ChainClient("localhost", port)) {
+            //Asks for the whole chain, then for its status, and never reads either
+            OutputStream out = stalled.getOutputStream();
+            out.write("{\"selection\":3}\n{\"selection\":0}\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            Thread.sleep(500);
+
+            assertEquals(size, reader.statusAsync().get(10, TimeUnit.SECONDS).size);
+            CompletableFuture<Void> added = CompletableFuture.runAsync(
+                    () -> bc.addBlock(new Block(size, bc.getTime(), "while a view is written", 1)));
+            added.get(10, TimeUnit.SECONDS);
+            assertEquals(size + 1, reader.statusAsync().get(10, TimeUnit.SECONDS).size);
+        }
+    }
+
+}